@@ -34,6 +34,8 @@ public class CPClient {
         try {
             cp = new CPProtocol(InetAddress.getByName(SERVER_NAME), CPCommandServer.COMMAND_SERVER_PORT, phy);
             cp.setCookieServer(InetAddress.getByName(SERVER_NAME), CPCookieServer.COOKIE_SERVER_PORT);
+            // fetch the cookie now and keep it fresh, commands do not wait for it
+            cp.startCookieRenewal();
         } catch (Exception e) {
             e.printStackTrace();
             return;
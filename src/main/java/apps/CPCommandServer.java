@@ -1,5 +1,10 @@
 package apps;
 
+import cp.CPCommandProcessor;
+import cp.CPProtocol;
+import phy.PhyChannelProtocol;
+import phy.PhyProtocol;
+
 public final class CPCommandServer {
     public static final int COMMAND_SERVER_PORT = 2000;
 
@@ -7,8 +12,25 @@ public final class CPCommandServer {
         // Prevent instantiation
     }
 
+    /*
+     * Optional argument: number of worker threads, default one per core
+     */
     public static void main(String[] args) {
-        throw new UnsupportedOperationException(
-                "Command server implementation is part of Task 3");
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+        // Set up the virtual link protocol
+        PhyProtocol phy = new PhyChannelProtocol(COMMAND_SERVER_PORT);
+
+        // Set up command protocol
+        CPProtocol cp = new CPProtocol(phy, false);
+        CPCommandProcessor server = new CPCommandProcessor(cp, phy, threads);
+        try {
+            server.start();
+            System.out.println("Command Server listening on port " + COMMAND_SERVER_PORT + " with " + threads + " worker(s)");
+            // server threads are daemons -> keep the application alive
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            return;
+        }
     }
-}
\ No newline at end of file
+}
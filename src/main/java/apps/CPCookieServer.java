@@ -1,22 +1,51 @@
 package apps;
 
+import core.Msg;
+import cp.CPCookieMac;
+import cp.CPCookieTable;
 import cp.CPProtocol;
-import exceptions.IWProtocolException;
+import cp.CPShardedCookieServer;
+import phy.PhyChannelProtocol;
 import phy.PhyProtocol;
 
 import java.io.IOException;
 
 public class CPCookieServer {
     protected static final int COOKIE_SERVER_PORT = 3000;
+    // number of requests drained from the socket per wakeup
+    private static final int COOKIE_BATCH_SIZE = 32;
+    // responses waiting for the writer thread before further ones are dropped
+    private static final int COOKIE_SEND_QUEUE = 1024;
+    // clients holding a cookie, the one closest to expiry makes room for a new client
+    private static final int COOKIE_TABLE_SIZE = 1 << 20;
+    private static final long COOKIE_LIFETIME = 60_000;
 
+    /*
+     * Optional argument: secret shared with the command server -> stateless cookies (see CPCookieMac)
+     */
     public static void main(String[] args) {
         // Set up the virtual link protocol
-        PhyProtocol phy = new PhyProtocol(COOKIE_SERVER_PORT);
+        PhyProtocol phy = new PhyChannelProtocol(COOKIE_SERVER_PORT);
+
+        // one shard per core, a single core keeps the pooled single-threaded loop below
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (threads > 1) {
+            runSharded(phy, threads, args);
+            return;
+        }
 
         // Set up command protocol
         CPProtocol cp;
         try {
             cp = new CPProtocol(phy, true);
+            cp.setPooling(true);
+            if (args.length > 0)
+                // cookies are valid for one to two epochs
+                cp.setStatelessCookies(new CPCookieMac(args[0], COOKIE_LIFETIME / 2));
+            else
+                cp.setCookieTable(new CPCookieTable(COOKIE_TABLE_SIZE, COOKIE_LIFETIME, true));
+            // answers are sent by a writer thread -> a full socket buffer does not stall processing
+            phy.setAsyncSend(COOKIE_SEND_QUEUE);
         } catch (Exception e) {
             System.err.println("Failed to initialize CPProtocol: " + e.getMessage());
             e.printStackTrace();
@@ -27,12 +56,26 @@ public class CPCookieServer {
         System.out.println("Cookie Server listening on port " + COOKIE_SERVER_PORT);
         while (true) {
             try {
-                cp.receive();
+                // requests are answered while processing -> hand the message objects back
+                for (Msg m : cp.receiveBatch(COOKIE_BATCH_SIZE, 0))
+                    m.release();
             } catch (IOException e) {
                 return;
-            } catch (IWProtocolException e) {
-                // Continue on protocol errors
             }
         }
     }
-}
\ No newline at end of file
+
+    private static void runSharded(PhyProtocol phy, int threads, String[] args) {
+        CPShardedCookieServer server = new CPShardedCookieServer(phy, threads, COOKIE_TABLE_SIZE, COOKIE_LIFETIME);
+        if (args.length > 0)
+            server.setStatelessCookies(new CPCookieMac(args[0], COOKIE_LIFETIME / 2));
+        try {
+            server.start();
+            System.out.println("Cookie Server listening on port " + COOKIE_SERVER_PORT + " with " + threads + " shards");
+            // server threads are daemons -> keep the application alive
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            return;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package core;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/*
+ * Helpers to parse and write protocol fields directly on bytes
+ * without going through Strings first
+ */
+public final class Ascii {
+
+	private Ascii() {
+	}
+
+	/*
+	 * Same characters as \s in java.util.regex
+	 */
+	public static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+	}
+
+	/*
+	 * Characters removed by String.trim()
+	 */
+	public static boolean isTrimmed(byte b) {
+		return b >= 0 && b <= ' ';
+	}
+
+	/*
+	 * Does buf[from, to) start with the given prefix
+	 */
+	public static boolean startsWith(byte[] buf, int from, int to, byte[] prefix) {
+		if (to - from < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (buf[from + i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Index of the first whitespace in buf[from, to) or to if there is none
+	 */
+	public static int skipToken(byte[] buf, int from, int to) {
+		while (from < to && !isWhitespace(buf[from]))
+			from++;
+		return from;
+	}
+
+	/*
+	 * Index of the first non-whitespace in buf[from, to) or to if there is none
+	 */
+	public static int skipWhitespace(byte[] buf, int from, int to) {
+		while (from < to && isWhitespace(buf[from]))
+			from++;
+		return from;
+	}
+
+	/*
+	 * Integer.parseInt() on buf[from, to) -> accepts and rejects exactly the same input
+	 * ASCII input is parsed in place, other input is decoded and handed to Integer.parseInt()
+	 */
+	public static int parseInt(byte[] buf, int from, int to) throws NumberFormatException {
+		long value = parseLong(buf, from, to);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw new NumberFormatException();
+		return (int) value;
+	}
+
+	/*
+	 * Long.parseLong() on buf[from, to) -> accepts and rejects exactly the same input
+	 */
+	public static long parseLong(byte[] buf, int from, int to) throws NumberFormatException {
+		for (int i = from; i < to; i++) {
+			if (buf[i] < 0)
+				return Long.parseLong(new String(buf, from, to - from));
+		}
+		if (from >= to)
+			throw new NumberFormatException();
+		boolean negative = false;
+		long limit = -Long.MAX_VALUE;
+		int i = from;
+		byte first = buf[i];
+		if (first == '-' || first == '+') {
+			if (first == '-') {
+				negative = true;
+				limit = Long.MIN_VALUE;
+			}
+			if (++i == to)
+				throw new NumberFormatException();
+		}
+		// accumulate negatively like Long.parseLong to cover Long.MIN_VALUE
+		long multmin = limit / 10;
+		long result = 0;
+		for (; i < to; i++) {
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9 || result < multmin)
+				throw new NumberFormatException();
+			result *= 10;
+			if (result < limit + digit)
+				throw new NumberFormatException();
+			result -= digit;
+		}
+		return negative ? result : -result;
+	}
+
+	/*
+	 * Number of characters of the decimal representation of v
+	 */
+	public static int length(long v) {
+		int n = v < 0 ? 2 : 1;
+		long x = Math.abs(v / 10);
+		while (x > 0) {
+			x /= 10;
+			n++;
+		}
+		return n;
+	}
+
+	/*
+	 * Write the decimal representation of v into dst at off -> returns the index behind it
+	 */
+	public static int put(byte[] dst, int off, long v) {
+		int end = off + length(v);
+		int i = end;
+		long x = v;
+		do {
+			dst[--i] = (byte) ('0' + Math.abs(x % 10));
+			x /= 10;
+		} while (x != 0);
+		if (v < 0)
+			dst[--i] = '-';
+		return end;
+	}
+
+	/*
+	 * Write the decimal representation of v at the position of out and advance it
+	 */
+	public static void put(ByteBuffer out, long v) {
+		int start = out.position();
+		int end = start + length(v);
+		if (end > out.limit())
+			throw new BufferOverflowException();
+		int i = end;
+		long x = v;
+		do {
+			out.put(--i, (byte) ('0' + Math.abs(x % 10)));
+			x /= 10;
+		} while (x != 0);
+		if (v < 0)
+			out.put(--i, (byte) '-');
+		out.position(end);
+	}
+}
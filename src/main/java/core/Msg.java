@@ -1,5 +1,7 @@
 package core;
 
+import java.nio.ByteBuffer;
+
 import exceptions.IWProtocolException;
 
 /* 
@@ -9,6 +11,9 @@ public abstract class Msg {
 	protected String data;
 	protected byte[] dataBytes;
 	protected Configuration config;
+	// set if the message was taken from a MsgPool
+	MsgPool<?> pool;
+	boolean inUse;
 	
 	public byte[] getDataBytes() {
 		return this.dataBytes;
@@ -31,6 +36,36 @@ public abstract class Msg {
 	}
 	public void setConfiguration(Configuration c) {this.config = c;}
 	
+	/*
+	 * Write the wire representation of this message at the position of out
+	 * Default: the bytes built by create() -> messages that can write their fields directly override this
+	 */
+	public void encode(ByteBuffer out) {
+		out.put(this.dataBytes);
+	}
+
+	/*
+	 * Hand a pooled message back to its pool after the handler is done with it
+	 * The message must not be used afterwards. No-op for messages that are not pooled.
+	 */
+	public void release() {
+		if (this.pool != null)
+			this.pool.recycle(this);
+	}
+
+	protected boolean isPooled() {
+		return this.pool != null;
+	}
+
+	/*
+	 * Clear all state before the message is reused -> subclasses clear their own fields
+	 */
+	protected void reset() {
+		this.data = null;
+		this.dataBytes = null;
+		this.config = null;
+	}
+
 	protected abstract void create(String sentence);
 	protected abstract Msg parse(String sentence) throws IWProtocolException;
 	
@@ -0,0 +1,74 @@
+package core;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*
+ * Per-thread pool of recyclable message objects
+ * Messages are taken with acquire() and handed back with Msg.release() once the handler is done.
+ * A message is returned to the pool of the releasing thread.
+ * The counters allow detecting handlers that forget to release: getOutstanding() keeps growing.
+ */
+public class MsgPool<T extends Msg> {
+	private final Supplier<T> factory;
+	private final int maxPerThread;
+	private final ThreadLocal<ArrayDeque<T>> free = ThreadLocal.withInitial(ArrayDeque::new);
+	private final LongAdder created = new LongAdder();
+	private final LongAdder acquired = new LongAdder();
+	private final LongAdder released = new LongAdder();
+	private final LongAdder doubleReleases = new LongAdder();
+
+	public MsgPool(Supplier<T> factory, int maxPerThread) {
+		this.factory = factory;
+		this.maxPerThread = maxPerThread;
+	}
+
+	public T acquire() {
+		T m = this.free.get().pollLast();
+		if (m == null) {
+			m = this.factory.get();
+			m.pool = this;
+			this.created.increment();
+		}
+		m.inUse = true;
+		this.acquired.increment();
+		return m;
+	}
+
+	@SuppressWarnings("unchecked")
+	void recycle(Msg m) {
+		if (!m.inUse) {
+			this.doubleReleases.increment();
+			throw new IllegalStateException("Message released twice");
+		}
+		m.inUse = false;
+		m.reset();
+		this.released.increment();
+		ArrayDeque<T> q = this.free.get();
+		if (q.size() < this.maxPerThread)
+			q.addLast((T) m);
+	}
+
+	// Number of message objects ever allocated by this pool
+	public long getCreated() {
+		return this.created.sum();
+	}
+
+	public long getAcquired() {
+		return this.acquired.sum();
+	}
+
+	public long getReleased() {
+		return this.released.sum();
+	}
+
+	// Messages currently handed out -> a steadily growing value indicates a leak
+	public long getOutstanding() {
+		return this.acquired.sum() - this.released.sum();
+	}
+
+	public long getDoubleReleases() {
+		return this.doubleReleases.sum();
+	}
+}
@@ -0,0 +1,34 @@
+package cp;
+
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/*
+ * Checksum algorithms of command and command_response messages
+ * CRC32 is the protocol default. CRC32C (hardware accelerated on current CPUs) is selected per message
+ * by prefixing the CRC field with CP_CRC32C_FLAG, e.g. "cp command 5 8 print hi C123456789".
+ * A server answers with the algorithm of the command, so a client opts in without any handshake.
+ */
+public enum CPChecksum {
+    CRC32, CRC32C;
+
+    static final byte CP_CRC32C_FLAG = 'C';
+    // one instance per thread and algorithm -> checking a message does not allocate
+    private static final ThreadLocal<CRC32> CRC32_INSTANCE = ThreadLocal.withInitial(CRC32::new);
+    private static final ThreadLocal<CRC32C> CRC32C_INSTANCE = ThreadLocal.withInitial(CRC32C::new);
+
+    /*
+     * Reset checksum of this algorithm, owned by the calling thread until its next call
+     */
+    Checksum get() {
+        Checksum c = this == CRC32C ? CRC32C_INSTANCE.get() : CRC32_INSTANCE.get();
+        c.reset();
+        return c;
+    }
+
+    // bytes in front of the CRC digits on the wire
+    int flagLength() {
+        return this == CRC32C ? 1 : 0;
+    }
+}
@@ -0,0 +1,111 @@
+package cp;
+
+import core.Ascii;
+import core.Msg;
+import exceptions.IllegalMsgException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Several commands in one datagram: "cp command_batch n id length [command] crc id length [command] crc ..."
+ * Every entry carries the id, length and CRC of a single CPCommandMsg, so entries can be answered
+ * and retransmitted individually. An entry with a wrong CRC is skipped, the others are kept.
+ */
+public class CPCommandBatchMsg extends CPMsg {
+    public static final String CP_CMD_BATCH_HEADER = "command_batch";
+    static final byte[] CP_CMD_BATCH_NAME = CP_CMD_BATCH_HEADER.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CP_CMD_BATCH_HEADER_BYTES = (CP_CMD_BATCH_HEADER + " ").getBytes(StandardCharsets.US_ASCII);
+    private final ArrayList<CPCommandMsg> commands = new ArrayList<>();
+    private int rejected;
+
+    public List<CPCommandMsg> getCommands() { return commands; }
+    public int size() { return commands.size(); }
+    // Entries dropped by the parser because of a wrong CRC
+    public int getRejected() { return rejected; }
+
+    /*
+     * Append a prepared command (see CPCommandMsg.prepare())
+     */
+    public void add(CPCommandMsg command) {
+        this.commands.add(command);
+    }
+
+    /*
+     * Number of bytes written by encode()
+     */
+    public int getEncodedLength() {
+        int n = CP_HEADER_BYTES.length + CP_CMD_BATCH_HEADER_BYTES.length + Ascii.length(this.commands.size());
+        for (CPCommandMsg c : this.commands)
+            n += 1 + c.fieldsLength();
+        return n;
+    }
+
+    @Override
+    public void encode(ByteBuffer out) {
+        out.put(CP_HEADER_BYTES);
+        out.put(CP_CMD_BATCH_HEADER_BYTES);
+        Ascii.put(out, this.commands.size());
+        for (CPCommandMsg c : this.commands) {
+            out.put((byte) ' ');
+            c.encodeFields(out);
+        }
+    }
+
+    /*
+     * Build the sentence from the commands added so far, the argument is not used
+     */
+    @Override
+    protected void create(String data) {
+        ByteBuffer out = ByteBuffer.allocate(getEncodedLength());
+        encode(out);
+        this.dataBytes = out.array();
+        this.data = new String(this.dataBytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Count and entries behind the header name in buf[from, to), parsed in place like single messages
+     * Every entry is checked against its own CRC before its payload is decoded.
+     */
+    @Override
+    void parseBody(byte[] buf, int from, int to, int crcFrom) throws IllegalMsgException {
+        int start = Ascii.skipWhitespace(buf, from, to);
+        if (start == from)
+            throw new IllegalMsgException();
+        int end = Ascii.skipToken(buf, start, to);
+        int n;
+        try {
+            n = Ascii.parseInt(buf, start, end);
+        } catch (NumberFormatException e) {
+            throw new IllegalMsgException();
+        }
+        if (n < 1)
+            throw new IllegalMsgException();
+        this.commands.clear();
+        this.rejected = 0;
+        for (int i = 0; i < n; i++) {
+            CPCommandMsg c = new CPCommandMsg();
+            end = c.parseFields(buf, end, to, CRC_ENTRY);
+            if (c.isCrcValid())
+                this.commands.add(c);
+            else
+                this.rejected++;
+        }
+        if (Ascii.skipWhitespace(buf, end, to) != to)
+            throw new IllegalMsgException();
+    }
+
+    @Override
+    protected Msg parse(String sentence) throws IllegalMsgException {
+        byte[] buf = sentence.getBytes(StandardCharsets.UTF_8);
+        int end = Ascii.skipToken(buf, 0, buf.length);
+        if (!isName(buf, 0, end, CP_CMD_BATCH_NAME))
+            throw new IllegalMsgException();
+        parseBody(buf, end, buf.length, CRC_ENTRY);
+        this.data = sentence;
+        this.dataBytes = buf;
+        return this;
+    }
+}
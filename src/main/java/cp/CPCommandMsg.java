@@ -1,27 +1,46 @@
 package cp;
 
+import core.Ascii;
 import core.Msg;
 import exceptions.IllegalMsgException;
-import java.util.zip.CRC32;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Checksum;
 
 public class CPCommandMsg extends CPMsg {
     public static final String CP_CMD_HEADER = "command";
+    private static final byte[] CP_CMD_HEADER_BYTES = (CP_CMD_HEADER + " ").getBytes(StandardCharsets.US_ASCII);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
     private long crc32;
+    private CPChecksum checksum = CPChecksum.CRC32;
+    // result of the CRC check done by parseFields()
+    private boolean crcValid;
     private int id;
     private int length;
     private String command;
+    // encoded command -> position 0, limit = length; may be a view of a buffer owned by the application
+    private ByteBuffer payload;
     
     // Task 1.2.3.b: Add Getter/Setter methods as needed for other tasks.
     public long getCrc32() { 
         return crc32; 
     }
     public int getId() { return id; }
+    public CPChecksum getChecksum() { return checksum; }
+
+    /*
+     * Algorithm of the CRC field, must be set before prepare()/create()
+     */
+    public void setChecksum(CPChecksum checksum) { this.checksum = checksum; }
     public int getLength() { return length; }
     
     public void setId(int id) { this.id = id; }
     public void setLength(int length) { this.length = length; }
     
     public String getCommand() { 
+        if (command == null && payload != null)
+            command = StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
         return command; 
     }
     
@@ -30,64 +49,184 @@ public class CPCommandMsg extends CPMsg {
     }
     
     // Task 1.2.3.a: Use the CRC32 class from Java to calculate the CRC checksum
-    private static long crcFor(int id, int length, String command) {
-        CRC32 crc = new CRC32();
-        String payload = id + " " + length + (length > 0 ? " " + command : "");
-        crc.update(payload.getBytes());
+    // CRC is calculated over everything preceding the CRC field: "command id length [command]"
+    private static long crcFor(CPChecksum checksum, int id, int length, ByteBuffer command) {
+        Checksum crc = checksum.get();
+        byte[] num = new byte[20];
+        crc.update(CP_CMD_HEADER_BYTES);
+        crc.update(num, 0, Ascii.put(num, 0, id));
+        crc.update(' ');
+        crc.update(num, 0, Ascii.put(num, 0, length));
+        if (length > 0) {
+            crc.update(' ');
+            crc.update(command.duplicate());
+        }
         return crc.getValue();
     }
-    
-    public void create(int id, String command) {
+
+    /*
+     * Set all fields without building the sentence -> the message is written by encode()
+     * The command is encoded once (UTF-8) and not copied again until it is put into the datagram.
+     */
+    public void prepare(int id, String command) {
         this.id = id;
         this.command = command;
-        this.length = command == null ? 0 : command.getBytes().length;
-        this.crc32 = crcFor(this.id, this.length, this.command == null ? "" : this.command);
-        String sentence = CP_CMD_HEADER + " " + this.id + " " + this.length
-                + (this.length > 0 ? " " + this.command : "")
-                + " " + this.crc32;
-        super.create(sentence);
+        this.payload = ByteBuffer.wrap(command == null ? new byte[0] : command.getBytes(StandardCharsets.UTF_8));
+        this.length = this.payload.remaining();
+        this.crc32 = crcFor(this.checksum, this.id, this.length, this.payload);
     }
-    
-    @Override
-    protected void create(String data) {
-        // Default: assume id already set externally to 0
-        create(this.id, data);
+
+    /*
+     * Same as prepare(int, String) for a command the application already holds as bytes
+     * The remaining bytes of command are neither copied nor consumed -> the buffer must not change until sent.
+     */
+    public void prepare(int id, ByteBuffer command) {
+        this.id = id;
+        this.command = null;
+        this.payload = command.slice();
+        this.length = this.payload.remaining();
+        this.crc32 = crcFor(this.checksum, this.id, this.length, this.payload);
     }
-    
+
+    public void create(int id, String command) {
+        prepare(id, command);
+        ByteBuffer out = ByteBuffer.allocate(CP_HEADER_BYTES.length + CP_CMD_HEADER_BYTES.length + fieldsLength());
+        encode(out);
+        this.dataBytes = out.array();
+        this.data = new String(this.dataBytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Write "cp command id length [command] crc" directly into out
+     */
     @Override
-    protected Msg parse(String sentence) throws IllegalMsgException {
-        String[] parts = sentence.split("\\s+");
-        // Minimum parts: "command" <id> <length> <crc32> = 4 parts
-        // If length > 0, then command follows: "command" <id> <length> <command> <crc32> = 5+ parts
-        if (parts.length < 4) {
-            throw new IllegalMsgException();
+    public void encode(ByteBuffer out) {
+        out.put(CP_HEADER_BYTES);
+        out.put(CP_CMD_HEADER_BYTES);
+        encodeFields(out);
+    }
+
+    /*
+     * Number of bytes written by encodeFields()
+     */
+    int fieldsLength() {
+        return Ascii.length(this.id) + 1 + Ascii.length(this.length)
+                + (this.length > 0 ? 1 + this.length : 0) + 1 + crcLength(this.checksum, this.crc32);
+    }
+
+    /*
+     * Write "id length [command] crc" -> one command entry, also used by CPCommandBatchMsg
+     */
+    void encodeFields(ByteBuffer out) {
+        Ascii.put(out, this.id);
+        out.put((byte) ' ');
+        Ascii.put(out, this.length);
+        if (this.length > 0) {
+            out.put((byte) ' ');
+            out.put(this.payload.duplicate());
         }
-        if (!CP_CMD_HEADER.equals(parts[0])) throw new IllegalMsgException();
+        out.put((byte) ' ');
+        putCrc(out, this.checksum, this.crc32);
+    }
+
+    /*
+     * Parse one "id length [command] crc" entry starting at buf[from], fields are separated by whitespace
+     * The command is taken byte-exact as the length bytes following the length field and one separator
+     * and kept as a view into buf, it is decoded on the first getCommand().
+     * The CRC is checked before the command is materialized (see isCrcValid()), over
+     *  crcFrom >= 0: the raw bytes buf[crcFrom, CRC field) -> a complete sentence starting at crcFrom
+     *  CRC_ENTRY: the header "command " and the raw bytes of the entry -> an entry of a batch frame
+     *  CRC_CHECKED: not at all, the caller checked the raw bytes already
+     * returns the index behind the CRC field
+     */
+    int parseFields(byte[] buf, int from, int to, int crcFrom) throws IllegalMsgException {
         try {
-            this.id = Integer.parseInt(parts[1]);
-            this.length = Integer.parseInt(parts[2]);
-            this.crc32 = Long.parseLong(parts[parts.length - 1]);
-            // Reconstruct command (may be empty)
-            String cmd = "";
-            if (parts.length > 4) {
-                StringBuilder b = new StringBuilder();
-                for (int i = 3; i < parts.length - 1; i++) {
-                    if (i > 3) b.append(" ");
-                    b.append(parts[i]);
-                }
-                cmd = b.toString();
-            }
-            this.command = cmd;
-            if (this.length != (this.command == null ? 0 : this.command.getBytes().length)) {
+            int first = Ascii.skipWhitespace(buf, from, to);
+            int end = Ascii.skipToken(buf, first, to);
+            int id = Ascii.parseInt(buf, first, end);
+            int start = Ascii.skipWhitespace(buf, end, to);
+            end = Ascii.skipToken(buf, start, to);
+            int length = Ascii.parseInt(buf, start, end);
+            if (length < 0)
                 throw new IllegalMsgException();
+            int payloadStart = end + 1;
+            if (length > 0) {
+                // exactly one separator, the command may start with whitespace itself
+                if (payloadStart + length > to || !Ascii.isWhitespace(buf[end]))
+                    throw new IllegalMsgException();
+                end = payloadStart + length;
             }
-            long calc = crcFor(this.id, this.length, this.command);
-            if (calc != this.crc32) throw new IllegalMsgException();
-            this.data = sentence;
-            this.dataBytes = sentence.getBytes();
-            return this;
+            int covered = end;
+            if (end == to || !Ascii.isWhitespace(buf[end]))
+                throw new IllegalMsgException();
+            start = Ascii.skipWhitespace(buf, end, to);
+            end = Ascii.skipToken(buf, start, to);
+            CPChecksum checksum = checksumOf(buf, start, end);
+            long crc = Ascii.parseLong(buf, start + checksum.flagLength(), end);
+
+            this.id = id;
+            this.length = length;
+            this.checksum = checksum;
+            this.crc32 = crc;
+            this.command = null;
+            if (crcFrom == CRC_CHECKED)
+                this.crcValid = true;
+            else if (crcFrom == CRC_ENTRY)
+                // the CRC covers the bytes as sent -> one separator in front of the CRC field
+                this.crcValid = start == covered + 1 && crcOf(checksum, CP_CMD_HEADER_BYTES, buf, first, covered) == crc;
+            else
+                this.crcValid = crcOf(checksum, null, buf, crcFrom, start - 1) == crc;
+            if (!this.crcValid)
+                this.payload = null;
+            else
+                this.payload = length > 0 ? ByteBuffer.wrap(buf, payloadStart, length).slice() : EMPTY;
+            return end;
         } catch (NumberFormatException e) {
             throw new IllegalMsgException();
         }
     }
+
+    @Override
+    void parseBody(byte[] buf, int from, int to, int crcFrom) throws IllegalMsgException {
+        int end = parseFields(buf, from, to, crcFrom);
+        if (Ascii.skipWhitespace(buf, end, to) != to || !this.crcValid)
+            throw new IllegalMsgException();
+    }
+
+    boolean isCrcValid() {
+        return this.crcValid;
+    }
+
+    @Override
+    protected void create(String data) {
+        // Default: assume id already set externally to 0
+        create(this.id, data);
+    }
+    
+    /*
+     * Parse "command id length [command] crc" in one pass over the encoded sentence
+     */
+    @Override
+    protected Msg parse(String sentence) throws IllegalMsgException {
+        byte[] b = sentence.getBytes(StandardCharsets.UTF_8);
+        int end = Ascii.skipToken(b, 0, b.length);
+        if (!isName(b, 0, end, CP_CMD_NAME))
+            throw new IllegalMsgException();
+        parseBody(b, end, b.length, 0);
+        this.data = sentence;
+        this.dataBytes = b;
+        return this;
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        this.crc32 = 0;
+        this.checksum = CPChecksum.CRC32;
+        this.crcValid = false;
+        this.id = 0;
+        this.length = 0;
+        this.command = null;
+        this.payload = null;
+    }
 }
@@ -0,0 +1,277 @@
+package cp;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import core.Msg;
+import phy.PhyConfiguration;
+import phy.PhyMsg;
+import phy.PhyMsgBatch;
+import phy.PhyProtocol;
+
+/*
+ * Command server: one I/O thread receives and parses commands, a pool of workers executes them
+ * The I/O thread hands every command (or batch of commands) to a bounded lock-free queue, commands
+ * arriving while it is full are dropped and retransmitted by the client. Each worker takes the next
+ * command, executes it and sends the response with the checksum algorithm of the command.
+ * Responses go through the asynchronous send queue of the phy layer (enabled if needed).
+ * Retransmitted commands are answered from a response cache by the I/O thread (see CPResponseCache).
+ * Supported commands: "status" and "print <text>", others are answered with an error.
+ */
+public class CPCommandProcessor {
+    // commands buffered between the I/O thread and the workers
+    private static final int CP_COMMAND_QUEUE = 4096;
+    // responses waiting for the writer thread
+    private static final int CP_COMMAND_SEND_QUEUE = 4096;
+    // messages read from the socket per wakeup
+    private static final int CP_COMMAND_BATCH = 32;
+    // threads check for close() at least this often (ms)
+    private static final int CP_COMMAND_POLL = 200;
+    // responses kept for retransmitted commands, longer than a client retransmits (ms)
+    private static final int CP_RESPONSE_CACHE_SIZE = 65536;
+    private static final long CP_RESPONSE_CACHE_WINDOW = 30_000;
+    private static final String CP_CMD_STATUS = "status";
+    private static final String CP_CMD_PRINT = "print";
+    private final CPProtocol cp;
+    private final PhyProtocol phy;
+    private final CPCommandQueue pending = new CPCommandQueue(CP_COMMAND_QUEUE);
+    private final Thread[] workers;
+    private volatile CPResponseCache cache = new CPResponseCache(CP_RESPONSE_CACHE_SIZE, CP_RESPONSE_CACHE_WINDOW);
+    private Thread reader;
+    private volatile boolean running;
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder answered = new LongAdder();
+    // time from receiving a command to handing its response to the phy layer, in ns
+    private final LongAdder latency = new LongAdder();
+    private final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
+
+    /*
+     * cp: command server instance (see CPProtocol(PhyProtocol, false)) on top of phy
+     * threads: number of workers executing commands
+     */
+    public CPCommandProcessor(CPProtocol cp, PhyProtocol phy, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be >= 1");
+        this.cp = cp;
+        this.phy = phy;
+        this.workers = new Thread[threads];
+    }
+
+    /*
+     * Start the I/O thread and the workers
+     */
+    public synchronized void start() throws InterruptedException {
+        if (this.running)
+            return;
+        if (this.phy.getSendQueue() == null)
+            this.phy.setAsyncSend(CP_COMMAND_SEND_QUEUE);
+        this.running = true;
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = new Thread(this::work, "cp-command-" + i);
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
+        }
+        this.reader = new Thread(this::read, "cp-command-io");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /*
+     * Stop all threads, commands still queued are discarded
+     */
+    public synchronized void close() throws InterruptedException {
+        if (!this.running)
+            return;
+        this.running = false;
+        this.reader.join();
+        for (Thread t : this.workers)
+            t.join();
+        this.pending.clear();
+    }
+
+    /*
+     * Replace the response cache, null disables it -> every copy of a command is executed
+     */
+    public void setResponseCache(CPResponseCache cache) {
+        this.cache = cache;
+    }
+
+    // null if disabled
+    public CPResponseCache getResponseCache() {
+        return this.cache;
+    }
+
+    public int getThreads() {
+        return this.workers.length;
+    }
+
+    // Commands waiting for a worker, a batch frame counts once
+    public int getDepth() {
+        return this.pending.size();
+    }
+
+    // Command messages received, a batch frame counts once
+    public long getReceived() {
+        return this.received.sum();
+    }
+
+    // Command messages discarded because the queue was full
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    // Commands executed, every command of a batch counts
+    public long getExecuted() {
+        return this.executed.sum();
+    }
+
+    // Commands answered with an error
+    public long getFailed() {
+        return this.failed.sum();
+    }
+
+    // Command messages answered, a batch frame counts once
+    public long getAnswered() {
+        return this.answered.sum();
+    }
+
+    // Mean time from receiving a command message to sending its response in ns, 0 before the first one
+    public long getMeanLatency() {
+        long n = this.answered.sum();
+        return n == 0 ? 0 : this.latency.sum() / n;
+    }
+
+    public long getMaxLatency() {
+        return this.maxLatency.get();
+    }
+
+    /*
+     * Execute one command -> its response, override to support further commands
+     */
+    protected CPCommandResponseMsg execute(CPCommandMsg command) {
+        CPCommandResponseMsg res = new CPCommandResponseMsg();
+        res.setChecksum(command.getChecksum());
+        String c = command.getCommand();
+        if (c.equals(CP_CMD_STATUS)) {
+            res.prepare(command.getId(), true, "running " + this.executed.sum());
+        } else if (c.equals(CP_CMD_PRINT) || c.startsWith(CP_CMD_PRINT + " ")) {
+            System.out.println(c.length() > CP_CMD_PRINT.length() ? c.substring(CP_CMD_PRINT.length() + 1) : "");
+            res.prepare(command.getId(), true, "");
+        } else {
+            res.prepare(command.getId(), false, "unknown command");
+        }
+        return res;
+    }
+
+    private void read() {
+        while (this.running) {
+            PhyMsgBatch in;
+            try {
+                in = this.phy.receiveBatch(CP_COMMAND_BATCH, CP_COMMAND_POLL);
+            } catch (IOException e) {
+                System.out.println("[CPCommandProcessor] Receive failed: " + e.getMessage());
+                return;
+            }
+            long now = System.nanoTime();
+            for (int i = 0; i < in.size(); i++) {
+                Msg m = in.get(i);
+                this.received.increment();
+                if (answerFromCache(m))
+                    continue;
+                // parses and validates, null for anything but commands
+                Msg cpm = this.cp.process(m);
+                if (cpm != null && !this.pending.offer((CPMsg) cpm, now)) {
+                    this.dropped.increment();
+                    cpm.release();
+                }
+            }
+        }
+    }
+
+    /*
+     * Answer a retransmitted command with its cached response -> true if it was answered
+     */
+    private boolean answerFromCache(Msg m) {
+        CPResponseCache c = this.cache;
+        if (c == null || !(m instanceof PhyMsg) || ((PhyMsg) m).getBuffer() == null)
+            return false;
+        PhyMsg pm = (PhyMsg) m;
+        int from = pm.getPayloadOffset();
+        CPMsg res = c.lookup((PhyConfiguration) pm.getConfiguration(), pm.getBuffer(), from, from + pm.getPayloadLength());
+        if (res == null)
+            return false;
+        try {
+            this.cp.sendResponse(res, pm.getConfiguration());
+        } catch (IOException e) {
+            System.out.println("[CPCommandProcessor] Send failed: " + e.getMessage());
+        }
+        m.release();
+        return true;
+    }
+
+    private void work() {
+        while (this.running) {
+            CPCommandQueue.Entry e;
+            try {
+                e = this.pending.poll(CP_COMMAND_POLL);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (e == null)
+                continue;
+            try {
+                respond(e.msg);
+            } catch (IOException ex) {
+                System.out.println("[CPCommandProcessor] Send failed: " + ex.getMessage());
+            } finally {
+                e.msg.release();
+            }
+            long took = System.nanoTime() - e.receivedAt;
+            this.latency.add(took);
+            this.maxLatency.accumulate(took);
+            this.answered.increment();
+        }
+    }
+
+    private void respond(CPMsg msg) throws IOException {
+        if (msg instanceof CPCommandMsg) {
+            CPCommandMsg command = (CPCommandMsg) msg;
+            CPCommandResponseMsg res = run(command);
+            CPResponseCache c = this.cache;
+            // the cache keeps the encoded response, send that instead of encoding twice
+            this.cp.sendResponse(c != null ? c.put(command, res) : res, msg.getConfiguration());
+            return;
+        }
+        // one response frame per command frame, split if the responses do not fit into one datagram
+        // the client retransmits batched commands one by one -> each response is cached on its own
+        CPResponseCache cache = this.cache;
+        PhyConfiguration peer = (PhyConfiguration) msg.getConfiguration();
+        CPCommandResponseBatchMsg batch = new CPCommandResponseBatchMsg();
+        for (CPCommandMsg c : ((CPCommandBatchMsg) msg).getCommands()) {
+            CPCommandResponseMsg res = run(c);
+            if (cache != null)
+                cache.put(peer, c, res);
+            batch.add(res);
+            if (batch.size() > 1 && batch.getEncodedLength() > CPProtocol.CP_BATCH_BYTES) {
+                batch.getResponses().remove(batch.size() - 1);
+                this.cp.sendResponse(batch, msg.getConfiguration());
+                batch = new CPCommandResponseBatchMsg();
+                batch.add(res);
+            }
+        }
+        if (batch.size() > 0)
+            this.cp.sendResponse(batch, msg.getConfiguration());
+    }
+
+    private CPCommandResponseMsg run(CPCommandMsg command) {
+        CPCommandResponseMsg res = execute(command);
+        this.executed.increment();
+        if (!res.isSuccess())
+            this.failed.increment();
+        return res;
+    }
+}
@@ -0,0 +1,70 @@
+package cp;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Bounded queue of received commands between the I/O thread and the workers of a command server
+ * The queue itself is lock-free (many producers, many consumers), its length is bounded by a counter.
+ * Idle workers wait on a semaphore counting the queued commands.
+ */
+class CPCommandQueue {
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final Semaphore available = new Semaphore(0);
+    private final int capacity;
+
+    static final class Entry {
+        final CPMsg msg;
+        // System.nanoTime() when the command was received
+        final long receivedAt;
+
+        Entry(CPMsg msg, long receivedAt) {
+            this.msg = msg;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    CPCommandQueue(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be >= 1");
+        this.capacity = capacity;
+    }
+
+    /*
+     * returns false if the queue is full
+     */
+    boolean offer(CPMsg msg, long receivedAt) {
+        if (this.depth.incrementAndGet() > this.capacity) {
+            this.depth.decrementAndGet();
+            return false;
+        }
+        this.queue.add(new Entry(msg, receivedAt));
+        this.available.release();
+        return true;
+    }
+
+    /*
+     * Next command, waits at most timeout ms -> null if none arrived
+     */
+    Entry poll(long timeout) throws InterruptedException {
+        if (!this.available.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+            return null;
+        Entry e = this.queue.poll();
+        this.depth.decrementAndGet();
+        return e;
+    }
+
+    int size() {
+        return this.depth.get();
+    }
+
+    void clear() {
+        while (this.available.tryAcquire()) {
+            this.queue.poll().msg.release();
+            this.depth.decrementAndGet();
+        }
+    }
+}
@@ -1,49 +1,205 @@
 package cp;
 
+import core.Ascii;
 import core.Msg;
 import exceptions.IllegalMsgException;
-import java.util.zip.CRC32;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Checksum;
 
 public class CPCommandResponseMsg extends CPMsg {
     public static final String CP_CMD_RES_HEADER = "command_response";
+    private static final byte[] CP_CMD_RES_HEADER_BYTES = (CP_CMD_RES_HEADER + " ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CP_STATUS_OK = "ok".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CP_STATUS_ERROR = "error".getBytes(StandardCharsets.US_ASCII);
     private long crc32;
+    private CPChecksum checksum = CPChecksum.CRC32;
+    // result of the CRC check done by parseFields()
+    private boolean crcValid;
     private int id;
     private boolean success; // true=ok, false=error
     private int length;      // payload length in bytes
     private String response; // optional payload
+    // payload is responseBytes[responseOffset, responseOffset + length)
+    private byte[] responseBytes;
+    private int responseOffset;
     
     // Task 1.2.3.b: Add Getter/Setter methods as needed for other tasks.
     public long getCrc32() { return crc32; }
     public int getId() { return id; }
+    public CPChecksum getChecksum() { return checksum; }
+
+    /*
+     * Algorithm of the CRC field, must be set before prepare()/create() -> answer with the one of the command
+     */
+    public void setChecksum(CPChecksum checksum) { this.checksum = checksum; }
     public boolean isSuccess() { return success; }
     public int getLength() { return length; }
-    public String getResponse() { return response; }
+    public String getResponse() {
+        if (response == null && responseBytes != null)
+            response = new String(responseBytes, responseOffset, length, StandardCharsets.UTF_8);
+        return response;
+    }
 
     public void setId(int id) { this.id = id; }
     public void setSuccess(boolean success) { this.success = success; }
     public void setResponse(String response) { this.response = response; }
 
     // Task 1.2.3.a: Use the CRC32 class from Java to calculate the CRC checksum
-    private static long crcFor(int id, boolean success, int length, String payload) {
-        String status = success ? "ok" : "error";
-        // CRC is calculated over "status length [payload]" WITHOUT id
-        String base = status + " " + length + (length > 0 ? " " + payload : "");
-        CRC32 crc = new CRC32();
-        crc.update(base.getBytes());
+    // CRC is calculated over everything preceding the CRC field: "command_response id status length [payload]"
+    private static long crcFor(CPChecksum checksum, int id, boolean success, int length, byte[] payload, int offset) {
+        Checksum crc = checksum.get();
+        byte[] num = new byte[20];
+        crc.update(CP_CMD_RES_HEADER_BYTES);
+        crc.update(num, 0, Ascii.put(num, 0, id));
+        crc.update(' ');
+        crc.update(success ? CP_STATUS_OK : CP_STATUS_ERROR);
+        crc.update(' ');
+        crc.update(num, 0, Ascii.put(num, 0, length));
+        if (length > 0) {
+            crc.update(' ');
+            crc.update(payload, offset, length);
+        }
         return crc.getValue();
     }
 
-    public void create(int id, boolean success, String payload) {
+    /*
+     * Set all fields without building the sentence -> the message is written by encode()
+     */
+    public void prepare(int id, boolean success, String payload) {
         this.id = id;
         this.success = success;
         this.response = payload == null ? "" : payload;
-        this.length = this.response.getBytes().length;
-        this.crc32 = crcFor(this.id, this.success, this.length, this.response);
-        String status = this.success ? "ok" : "error";
-        String sentence = CP_CMD_RES_HEADER + " " + this.id + " " + status + " " + this.length
-                + (this.length > 0 ? " " + this.response : "")
-                + " " + this.crc32;
-        super.create(sentence);
+        this.responseBytes = this.response.getBytes(StandardCharsets.UTF_8);
+        this.responseOffset = 0;
+        this.length = this.responseBytes.length;
+        this.crc32 = crcFor(this.checksum, this.id, this.success, this.length, this.responseBytes, 0);
+    }
+
+    public void create(int id, boolean success, String payload) {
+        prepare(id, success, payload);
+        ByteBuffer out = ByteBuffer.allocate(getEncodedLength());
+        encode(out);
+        this.dataBytes = out.array();
+        this.data = new String(this.dataBytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Write "cp command_response id status length [payload] crc" directly into out
+     */
+    @Override
+    public void encode(ByteBuffer out) {
+        out.put(CP_HEADER_BYTES);
+        out.put(CP_CMD_RES_HEADER_BYTES);
+        encodeFields(out);
+    }
+
+    /*
+     * Number of bytes written by encode()
+     */
+    public int getEncodedLength() {
+        return CP_HEADER_BYTES.length + CP_CMD_RES_HEADER_BYTES.length + fieldsLength();
+    }
+
+    /*
+     * Number of bytes written by encodeFields()
+     */
+    int fieldsLength() {
+        return Ascii.length(this.id) + 1 + (this.success ? CP_STATUS_OK : CP_STATUS_ERROR).length
+                + 1 + Ascii.length(this.length) + (this.length > 0 ? 1 + this.length : 0)
+                + 1 + crcLength(this.checksum, this.crc32);
+    }
+
+    /*
+     * Write "id status length [payload] crc" -> one response entry, also used by CPCommandResponseBatchMsg
+     */
+    void encodeFields(ByteBuffer out) {
+        Ascii.put(out, this.id);
+        out.put((byte) ' ');
+        out.put(this.success ? CP_STATUS_OK : CP_STATUS_ERROR);
+        out.put((byte) ' ');
+        Ascii.put(out, this.length);
+        if (this.length > 0) {
+            out.put((byte) ' ');
+            out.put(this.responseBytes, this.responseOffset, this.length);
+        }
+        out.put((byte) ' ');
+        putCrc(out, this.checksum, this.crc32);
+    }
+
+    /*
+     * Parse one "id status length [payload] crc" entry starting at buf[from], fields are separated by whitespace
+     * The payload is taken byte-exact as the length bytes following the length field and one separator
+     * and kept as a view into buf, it is decoded on the first getResponse().
+     * The CRC is checked as in CPCommandMsg.parseFields() before the payload is materialized.
+     * returns the index behind the CRC field
+     */
+    int parseFields(byte[] buf, int from, int to, int crcFrom) throws IllegalMsgException {
+        try {
+            int first = Ascii.skipWhitespace(buf, from, to);
+            int end = Ascii.skipToken(buf, first, to);
+            int id = Ascii.parseInt(buf, first, end);
+            int start = Ascii.skipWhitespace(buf, end, to);
+            end = Ascii.skipToken(buf, start, to);
+            boolean success;
+            if (end - start == CP_STATUS_OK.length && Ascii.startsWith(buf, start, end, CP_STATUS_OK))
+                success = true;
+            else if (end - start == CP_STATUS_ERROR.length && Ascii.startsWith(buf, start, end, CP_STATUS_ERROR))
+                success = false;
+            else
+                throw new IllegalMsgException();
+            start = Ascii.skipWhitespace(buf, end, to);
+            end = Ascii.skipToken(buf, start, to);
+            int length = Ascii.parseInt(buf, start, end);
+            if (length < 0)
+                throw new IllegalMsgException();
+            int payloadStart = end + 1;
+            if (length > 0) {
+                // exactly one separator, the payload may start with whitespace itself
+                if (payloadStart + length > to || !Ascii.isWhitespace(buf[end]))
+                    throw new IllegalMsgException();
+                end = payloadStart + length;
+            }
+            int covered = end;
+            if (end == to || !Ascii.isWhitespace(buf[end]))
+                throw new IllegalMsgException();
+            start = Ascii.skipWhitespace(buf, end, to);
+            end = Ascii.skipToken(buf, start, to);
+            CPChecksum checksum = checksumOf(buf, start, end);
+            long crc = Ascii.parseLong(buf, start + checksum.flagLength(), end);
+
+            this.id = id;
+            this.success = success;
+            this.length = length;
+            this.checksum = checksum;
+            this.crc32 = crc;
+            this.response = null;
+            if (crcFrom == CRC_CHECKED)
+                this.crcValid = true;
+            else if (crcFrom == CRC_ENTRY)
+                // the CRC covers the bytes as sent -> one separator in front of the CRC field
+                this.crcValid = start == covered + 1
+                        && crcOf(checksum, CP_CMD_RES_HEADER_BYTES, buf, first, covered) == crc;
+            else
+                this.crcValid = crcOf(checksum, null, buf, crcFrom, start - 1) == crc;
+            this.responseBytes = this.crcValid ? buf : null;
+            this.responseOffset = payloadStart;
+            return end;
+        } catch (NumberFormatException e) {
+            throw new IllegalMsgException();
+        }
+    }
+
+    @Override
+    void parseBody(byte[] buf, int from, int to, int crcFrom) throws IllegalMsgException {
+        int end = parseFields(buf, from, to, crcFrom);
+        if (Ascii.skipWhitespace(buf, end, to) != to || !this.crcValid)
+            throw new IllegalMsgException();
+    }
+
+    boolean isCrcValid() {
+        return this.crcValid;
     }
 
     @Override
@@ -52,40 +208,32 @@ public class CPCommandResponseMsg extends CPMsg {
         create(this.id, true, data);
     }
     
+    /*
+     * Parse "command_response id status length [payload] crc" in one pass over the encoded sentence
+     */
     @Override
     protected Msg parse(String sentence) throws IllegalMsgException {
-        String[] parts = sentence.split("\\s+");
-        if (parts.length < 5) throw new IllegalMsgException();
-        if (!CP_CMD_RES_HEADER.equals(parts[0])) throw new IllegalMsgException();
-        try {
-            this.id = Integer.parseInt(parts[1]);
-            String status = parts[2];
-            if (!status.equals("ok") && !status.equals("error")) throw new IllegalMsgException();
-            this.success = status.equals("ok");
-            this.length = Integer.parseInt(parts[3]);
-            this.crc32 = Long.parseLong(parts[parts.length - 1]);
-            // Build payload string between length field and CRC (if any)
-            String payload = "";
-            if (parts.length > 5) {
-                StringBuilder b = new StringBuilder();
-                for (int i = 4; i < parts.length - 1; i++) {
-                    if (i > 4) b.append(" ");
-                    b.append(parts[i]);
-                }
-                payload = b.toString();
-            }
-            this.response = payload;
-            // length check
-            if (this.length != (this.response == null ? 0 : this.response.getBytes().length)) {
-                throw new IllegalMsgException();
-            }
-            long calc = crcFor(this.id, this.success, this.length, this.response == null ? "" : this.response);
-            if (calc != this.crc32) throw new IllegalMsgException();
-            this.data = sentence;
-            this.dataBytes = sentence.getBytes();
-            return this;
-        } catch (NumberFormatException e) {
+        byte[] b = sentence.getBytes(StandardCharsets.UTF_8);
+        int end = Ascii.skipToken(b, 0, b.length);
+        if (!isName(b, 0, end, CP_CMD_RES_NAME))
             throw new IllegalMsgException();
-        }
+        parseBody(b, end, b.length, 0);
+        this.data = sentence;
+        this.dataBytes = b;
+        return this;
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        this.crc32 = 0;
+        this.checksum = CPChecksum.CRC32;
+        this.crcValid = false;
+        this.id = 0;
+        this.success = false;
+        this.length = 0;
+        this.response = null;
+        this.responseBytes = null;
+        this.responseOffset = 0;
     }
 }
@@ -0,0 +1,159 @@
+package cp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import phy.PhyConfiguration;
+
+/*
+ * Stateless cookies: the cookie is a MAC over (client address, port, epoch), nothing is stored
+ * Time is divided into epochs of period ms, every epoch has its own key derived from a secret
+ * -> keys rotate by themselves, and every server knowing the secret issues and checks the same cookies.
+ * A cookie is valid in the epoch it was issued in and the following one (period to 2 * period).
+ * Layout of the 31 bit cookie (non-negative, a negative cookie means "none" on the client):
+ *   bits 30..28: lowest bits of the epoch, bits 27..0: truncated MAC
+ * Checking a cookie is one MAC computation without any shared state -> any number of threads in parallel.
+ */
+public class CPCookieMac {
+    private static final String CP_MAC_ALGORITHM = "HmacSHA256";
+    private static final int CP_EPOCH_BITS = 3;
+    private static final int CP_MAC_BITS = 31 - CP_EPOCH_BITS;
+    private static final int CP_MAC_MASK = (1 << CP_MAC_BITS) - 1;
+    private static final int CP_EPOCH_MASK = (1 << CP_EPOCH_BITS) - 1;
+    private static final int CP_SECRET_BYTES = 32;
+    private final byte[] secret;
+    private final long period;
+    // per thread: MAC keyed for an epoch, one for even and one for odd epochs
+    private final ThreadLocal<EpochMac[]> macs = ThreadLocal.withInitial(() -> new EpochMac[2]);
+    // per thread: MAC input, 16 byte address + 2 byte port + 8 byte epoch
+    private final ThreadLocal<byte[]> input = ThreadLocal.withInitial(() -> new byte[26]);
+
+    private static final class EpochMac {
+        final long epoch;
+        final Mac mac;
+
+        EpochMac(long epoch, Mac mac) {
+            this.epoch = epoch;
+            this.mac = mac;
+        }
+    }
+
+    /*
+     * secret: shared by all servers issuing or checking cookies
+     * period: length of an epoch in ms
+     */
+    public CPCookieMac(byte[] secret, long period) {
+        if (secret.length == 0 || period < 1)
+            throw new IllegalArgumentException("secret must not be empty and period must be >= 1");
+        this.secret = secret.clone();
+        this.period = period;
+    }
+
+    public CPCookieMac(String secret, long period) {
+        this(secret.getBytes(StandardCharsets.UTF_8), period);
+    }
+
+    /*
+     * Random secret -> only this instance can check its cookies
+     */
+    public static CPCookieMac random(long period) {
+        byte[] secret = new byte[CP_SECRET_BYTES];
+        new SecureRandom().nextBytes(secret);
+        return new CPCookieMac(secret, period);
+    }
+
+    /*
+     * Cookie of the client for the current epoch
+     */
+    public int issue(PhyConfiguration peer) {
+        return issue(peer, System.currentTimeMillis());
+    }
+
+    int issue(PhyConfiguration peer, long now) {
+        long epoch = now / this.period;
+        return (int) (epoch & CP_EPOCH_MASK) << CP_MAC_BITS | mac(peer, epoch);
+    }
+
+    /*
+     * Was the cookie issued to this client in the current or the previous epoch
+     */
+    public boolean isValid(PhyConfiguration peer, int cookie) {
+        return isValid(peer, cookie, System.currentTimeMillis());
+    }
+
+    boolean isValid(PhyConfiguration peer, int cookie, long now) {
+        if (cookie < 0)
+            return false;
+        long epoch = now / this.period;
+        int bits = cookie >>> CP_MAC_BITS;
+        if ((epoch & CP_EPOCH_MASK) != bits) {
+            epoch--;
+            if ((epoch & CP_EPOCH_MASK) != bits)
+                return false;
+        }
+        return mac(peer, epoch) == (cookie & CP_MAC_MASK);
+    }
+
+    /*
+     * ms a cookie issued now stays valid -> until the end of the next epoch
+     */
+    public long validFor() {
+        return validFor(System.currentTimeMillis());
+    }
+
+    long validFor(long now) {
+        return (now / this.period + 2) * this.period - now;
+    }
+
+    // Length of an epoch in ms
+    public long getPeriod() {
+        return this.period;
+    }
+
+    private int mac(PhyConfiguration peer, long epoch) {
+        byte[] in = this.input.get();
+        byte[] address = peer.getRemoteIPAddress().getAddress();
+        int n = address.length;
+        System.arraycopy(address, 0, in, 0, n);
+        int port = peer.getRemotePort();
+        in[n++] = (byte) (port >>> 8);
+        in[n++] = (byte) port;
+        for (int shift = 56; shift >= 0; shift -= 8)
+            in[n++] = (byte) (epoch >>> shift);
+        Mac mac = macFor(epoch);
+        mac.update(in, 0, n);
+        byte[] tag = mac.doFinal();
+        int v = (tag[0] & 0xFF) << 24 | (tag[1] & 0xFF) << 16 | (tag[2] & 0xFF) << 8 | (tag[3] & 0xFF);
+        return v & CP_MAC_MASK;
+    }
+
+    /*
+     * MAC of the calling thread keyed for the epoch -> the key of an epoch is HMAC(secret, epoch)
+     */
+    private Mac macFor(long epoch) {
+        EpochMac[] cache = this.macs.get();
+        int i = (int) (epoch & 1);
+        EpochMac m = cache[i];
+        if (m != null && m.epoch == epoch)
+            return m.mac;
+        try {
+            Mac derive = Mac.getInstance(CP_MAC_ALGORITHM);
+            derive.init(new SecretKeySpec(this.secret, CP_MAC_ALGORITHM));
+            byte[] e = new byte[8];
+            for (int b = 0; b < 8; b++)
+                e[b] = (byte) (epoch >>> (56 - 8 * b));
+            byte[] key = derive.doFinal(e);
+            Mac mac = m != null ? m.mac : Mac.getInstance(CP_MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, CP_MAC_ALGORITHM));
+            cache[i] = new EpochMac(epoch, mac);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is available on every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+}
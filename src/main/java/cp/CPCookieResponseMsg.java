@@ -7,6 +7,8 @@ class CPCookieResponseMsg extends CPMsg {
     protected static final String CP_CRES_HEADER = "cookie_response";
     private boolean success;
     private int cookie;
+    // validity of the cookie in ms as announced by the server, 0 if not announced
+    private long lifetime;
 
     protected CPCookieResponseMsg() {
 
@@ -19,8 +21,10 @@ class CPCookieResponseMsg extends CPMsg {
 
     protected int getCookie() {return this.cookie;}
 
+    protected long getLifetime() {return this.lifetime;}
+
     /*
-     * Create cookie request message.
+     * Create cookie response message: "cookie_response ACK <cookie> [<lifetime ms>]" or "cookie_response NAK <text>"
      * The cp header is prepended in the super-class.
      */
     @Override
@@ -46,16 +50,29 @@ class CPCookieResponseMsg extends CPMsg {
         this.success = parts[1].equals("ACK");
 
         if (success) {
+            // the lifetime is optional, servers without it announce nothing
+            String[] fields = parts[2].trim().split("\\s+");
+            if (fields.length > 2)
+                throw new IllegalMsgException();
             try {
-                Integer.parseInt(parts[2]);
+                this.cookie = Integer.parseInt(fields[0]);
+                this.lifetime = fields.length == 2 ? Long.parseLong(fields[1]) : 0;
             } catch (NumberFormatException e) {
                 throw new IllegalMsgException();
             }
-            this.cookie = Integer.parseInt(parts[2]);
+            if (this.lifetime < 0)
+                throw new IllegalMsgException();
         } else {
             this.data = parts[2];
         }
         return this;
     }
 
+    @Override
+    protected void reset() {
+        super.reset();
+        this.success = false;
+        this.cookie = 0;
+        this.lifetime = 0;
+    }
 }
@@ -0,0 +1,217 @@
+package cp;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import phy.PhyConfiguration;
+
+/*
+ * Cookies issued by a cookie server, one per client
+ * Lookups and inserts go to a ConcurrentHashMap and can run on any number of threads.
+ * Every cookie is valid for lifetime ms. Expiry uses a hashed timing wheel: each entry is queued in
+ * the slot of its deadline, and expire() only looks at the slots whose time has passed -> O(1) per
+ * expired cookie instead of a scan over the table. One thread sweeps at a time, the others skip it.
+ * Once capacity clients hold a cookie, a new client either replaces the cookie closest to expiry
+ * (evict) or is rejected.
+ */
+public class CPCookieTable {
+    private static final int CP_WHEEL_SLOTS = 256;
+    private final int capacity;
+    private final long lifetime;
+    private final boolean evict;
+    // ms per slot, the wheel spans more than one lifetime
+    private final long tick;
+    private final ConcurrentHashMap<PhyConfiguration, Entry> cookies = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry>[] wheel;
+    private final AtomicInteger size = new AtomicInteger();
+    // guards cursor and keep
+    private final ReentrantLock sweep = new ReentrantLock();
+    // first tick not swept yet, -1 before the first sweep
+    private long cursor = -1;
+    // entries of a swept slot that are not due yet
+    private final ArrayList<Entry> keep = new ArrayList<>();
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private static final class Entry {
+        final PhyConfiguration peer;
+        final Cookie cookie;
+        final long deadline;
+
+        Entry(PhyConfiguration peer, Cookie cookie, long deadline) {
+            this.peer = peer;
+            this.cookie = cookie;
+            this.deadline = deadline;
+        }
+    }
+
+    /*
+     * capacity: clients holding a cookie at the same time
+     * lifetime: validity of a cookie in ms
+     * evict: replace the cookie closest to expiry when full instead of rejecting the new client
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public CPCookieTable(int capacity, long lifetime, boolean evict) {
+        if (capacity < 1 || lifetime < 1)
+            throw new IllegalArgumentException("capacity and lifetime must be >= 1");
+        this.capacity = capacity;
+        this.lifetime = lifetime;
+        this.evict = evict;
+        this.tick = lifetime / (CP_WHEEL_SLOTS - 1) + 1;
+        this.wheel = new ConcurrentLinkedQueue[CP_WHEEL_SLOTS];
+        for (int i = 0; i < CP_WHEEL_SLOTS; i++)
+            this.wheel[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    /*
+     * Store a new cookie for the client, an earlier one is replaced (renewal)
+     * returns the stored cookie or null if the table is full and eviction is disabled
+     */
+    public Cookie put(PhyConfiguration peer, int value) {
+        return put(peer, value, System.currentTimeMillis());
+    }
+
+    Cookie put(PhyConfiguration peer, int value, long now) {
+        expire(now);
+        Entry e = new Entry(peer, new Cookie(now, value), now + this.lifetime);
+        Entry old = this.cookies.put(peer, e);
+        if (old == null && this.size.incrementAndGet() > this.capacity) {
+            if (!this.evict || !evictOne()) {
+                if (this.cookies.remove(peer, e))
+                    this.size.decrementAndGet();
+                this.rejected.increment();
+                return null;
+            }
+        }
+        // a replaced entry stays in the wheel until its slot is swept, it is skipped there
+        this.wheel[slot(e.deadline)].add(e);
+        this.issued.increment();
+        return e.cookie;
+    }
+
+    /*
+     * Current cookie of the client, null if it has none or it expired
+     */
+    public Cookie get(PhyConfiguration peer) {
+        return get(peer, System.currentTimeMillis());
+    }
+
+    Cookie get(PhyConfiguration peer, long now) {
+        Entry e = this.cookies.get(peer);
+        // expired entries may not have been swept yet
+        return e == null || e.deadline <= now ? null : e.cookie;
+    }
+
+    /*
+     * Does the client hold this cookie and is it still valid
+     */
+    public boolean isValid(PhyConfiguration peer, int value) {
+        Cookie c = get(peer);
+        return c != null && c.getCookieValue() == value;
+    }
+
+    /*
+     * Remove the cookies whose lifetime is over, called on every put() as well
+     */
+    public void expire() {
+        expire(System.currentTimeMillis());
+    }
+
+    void expire(long now) {
+        if (!this.sweep.tryLock())
+            return;
+        try {
+            // every entry in the slots of the ticks before target is due
+            long target = now / this.tick;
+            if (this.cursor < 0)
+                this.cursor = target;
+            long steps = Math.min(target - this.cursor, CP_WHEEL_SLOTS);
+            for (long t = this.cursor; t < this.cursor + steps; t++) {
+                ConcurrentLinkedQueue<Entry> q = this.wheel[(int) (t & (CP_WHEEL_SLOTS - 1))];
+                Entry e;
+                while ((e = q.poll()) != null) {
+                    if (e.deadline > now)
+                        this.keep.add(e);
+                    else if (this.cookies.remove(e.peer, e)) {
+                        this.size.decrementAndGet();
+                        this.expired.increment();
+                    }
+                }
+                q.addAll(this.keep);
+                this.keep.clear();
+            }
+            this.cursor = Math.max(this.cursor, target);
+        } finally {
+            this.sweep.unlock();
+        }
+    }
+
+    /*
+     * Remove the cookie closest to expiry -> the first live entry from the cursor on
+     */
+    private boolean evictOne() {
+        this.sweep.lock();
+        try {
+            long start = Math.max(this.cursor, 0);
+            for (long t = start; t < start + CP_WHEEL_SLOTS; t++) {
+                ConcurrentLinkedQueue<Entry> q = this.wheel[(int) (t & (CP_WHEEL_SLOTS - 1))];
+                Entry e;
+                while ((e = q.poll()) != null) {
+                    // replaced entries are dropped on the way
+                    if (this.cookies.remove(e.peer, e)) {
+                        this.size.decrementAndGet();
+                        this.evicted.increment();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            this.sweep.unlock();
+        }
+    }
+
+    private int slot(long deadline) {
+        return (int) ((deadline / this.tick) & (CP_WHEEL_SLOTS - 1));
+    }
+
+    // Clients holding a cookie, expired ones count until they are swept
+    public int size() {
+        return this.size.get();
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    // Validity of a cookie in ms
+    public long getLifetime() {
+        return this.lifetime;
+    }
+
+    // Cookies stored, including renewals
+    public long getIssued() {
+        return this.issued.sum();
+    }
+
+    // Cookies removed because their lifetime was over
+    public long getExpired() {
+        return this.expired.sum();
+    }
+
+    // Cookies removed early to make room for a new client
+    public long getEvicted() {
+        return this.evicted.sum();
+    }
+
+    // New clients turned away because the table was full
+    public long getRejected() {
+        return this.rejected.sum();
+    }
+}
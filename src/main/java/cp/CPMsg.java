@@ -1,15 +1,171 @@
 package cp;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+import core.Ascii;
 import core.Msg;
+import exceptions.BadChecksumException;
 import exceptions.IWProtocolException;
 import exceptions.IllegalMsgException;
 
 class CPMsg extends Msg {
     protected static final String CP_HEADER = "cp";
+    protected static final byte[] CP_HEADER_BYTES = (CP_HEADER + " ").getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CP_HEADER_NAME = CP_HEADER.getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CP_CMD_NAME = CPCommandMsg.CP_CMD_HEADER.getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CP_CMD_RES_NAME = CPCommandResponseMsg.CP_CMD_RES_HEADER.getBytes(StandardCharsets.US_ASCII);
+    // crcFrom of parseFields(): an entry of a batch frame, CRC over the message header and the entry
+    static final int CRC_ENTRY = -1;
+    // crcFrom of parseFields(): the CRC of the raw bytes was checked already
+    static final int CRC_CHECKED = -2;
+    // if set, parsed messages are taken from these pools
+    CPMsgPools pools;
+    // received message whose buffer this message may view, released together with this message
+    private Msg backing;
+
+    CPMsg() {}
+    CPMsg(CPMsgPools pools) {
+        this.pools = pools;
+    }
+
+    /*
+     * Keep the received message m until this message is released -> a payload view into its buffer stays valid
+     * Only pooled messages are reliably released, returns false if m was not kept
+     */
+    boolean retain(Msg m) {
+        if (!isPooled())
+            return false;
+        this.backing = m;
+        return true;
+    }
+
+    @Override
+    public void release() {
+        Msg m = this.backing;
+        this.backing = null;
+        super.release();
+        if (m != null)
+            m.release();
+    }
+
+    /*
+     * Checksum of header + buf[from, to) -> header may be null
+     */
+    static long crcOf(CPChecksum checksum, byte[] header, byte[] buf, int from, int to) {
+        Checksum crc = checksum.get();
+        if (header != null)
+            crc.update(header, 0, header.length);
+        crc.update(buf, from, to - from);
+        return crc.getValue();
+    }
+
+    // algorithm of the CRC field buf[start, end)
+    static CPChecksum checksumOf(byte[] buf, int start, int end) {
+        return start < end && buf[start] == CPChecksum.CP_CRC32C_FLAG ? CPChecksum.CRC32C : CPChecksum.CRC32;
+    }
+
+    static int crcLength(CPChecksum checksum, long crc) {
+        return checksum.flagLength() + Ascii.length(crc);
+    }
+
+    static void putCrc(ByteBuffer out, CPChecksum checksum, long crc) {
+        if (checksum == CPChecksum.CRC32C)
+            out.put(CPChecksum.CP_CRC32C_FLAG);
+        Ascii.put(out, crc);
+    }
+
+    /*
+     * Early check of a command or command_response sentence buf[from, to) (from = start of its header)
+     * The CRC field is the last token and covers the raw bytes in front of its separator, so a corrupt
+     * datagram is rejected without decoding or splitting it and before a message object is taken.
+     */
+    static boolean checksumValid(byte[] buf, int from, int to) {
+        int end = to;
+        while (end > from && Ascii.isWhitespace(buf[end - 1]))
+            end--;
+        int start = end;
+        while (start > from && !Ascii.isWhitespace(buf[start - 1]))
+            start--;
+        if (start - 1 <= from)
+            return false;
+        CPChecksum checksum = checksumOf(buf, start, end);
+        try {
+            long crc = Ascii.parseLong(buf, start + checksum.flagLength(), end);
+            return crcOf(checksum, null, buf, from, start - 1) == crc;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /*
+     * Parse a CP sentence directly from received bytes buf[from, to), e.g. the payload of a PhyMsg
+     * Commands, command responses and their batch frames are parsed in a single pass without
+     * intermediate Strings, a wrong CRC is detected before anything is decoded or a message object is taken.
+     * Their payload stays a view into buf -> buf must not change while the message is in use.
+     * Batch frames are copied first if pooling is enabled: their entries are not pooled and are handed out
+     * one by one, so there is no single release() after which a reused buf could be overwritten.
+     */
+    Msg parse(byte[] buf, int from, int to) throws IWProtocolException {
+        if (!Ascii.startsWith(buf, from, to, CP_HEADER_NAME))
+            throw new IllegalMsgException();
+        int rest = Ascii.skipWhitespace(buf, from + CP_HEADER_NAME.length, to);
+        if (rest == from + CP_HEADER_NAME.length || rest == to)
+            throw new IllegalMsgException();
+        int nameEnd = Ascii.skipToken(buf, rest, to);
+        // batch frames carry one CRC per entry, checked entry by entry
+        CPMsg batch = null;
+        if (isName(buf, rest, nameEnd, CPCommandBatchMsg.CP_CMD_BATCH_NAME))
+            batch = new CPCommandBatchMsg();
+        else if (isName(buf, rest, nameEnd, CPCommandResponseBatchMsg.CP_CMD_RES_BATCH_NAME))
+            batch = new CPCommandResponseBatchMsg();
+        if (batch != null) {
+            if (pools != null) {
+                buf = Arrays.copyOfRange(buf, nameEnd, to);
+                nameEnd = 0;
+                to = buf.length;
+            }
+            batch.parseBody(buf, nameEnd, to, CRC_ENTRY);
+            return batch;
+        }
+        boolean response = isName(buf, rest, nameEnd, CP_CMD_RES_NAME);
+        if (!response && !isName(buf, rest, nameEnd, CP_CMD_NAME))
+            return parse(new String(buf, from, to - from, StandardCharsets.UTF_8));
+
+        if (!checksumValid(buf, rest, to))
+            throw new BadChecksumException();
+        CPMsg parsedMsg;
+        if (response)
+            parsedMsg = pools != null ? pools.commandResponses.acquire() : new CPCommandResponseMsg();
+        else
+            parsedMsg = pools != null ? pools.commands.acquire() : new CPCommandMsg();
+        try {
+            parsedMsg.parseBody(buf, nameEnd, to, CRC_CHECKED);
+        } catch (IWProtocolException e) {
+            parsedMsg.release();
+            throw e;
+        }
+        return parsedMsg;
+    }
+
+    // is buf[from, to) exactly the given header name
+    static boolean isName(byte[] buf, int from, int to, byte[] name) {
+        return to - from == name.length && Ascii.startsWith(buf, from, to, name);
+    }
+
+    /*
+     * Fields of a single message behind its header name in buf[from, to), see CPCommandMsg.parseFields()
+     */
+    void parseBody(byte[] buf, int from, int to, int crcFrom) throws IWProtocolException {
+        throw new IllegalMsgException();
+    }
+
     @Override
     protected void create(String sentence) {
         data = CP_HEADER + " " + sentence;
-        this.dataBytes = data.getBytes();
+        this.dataBytes = data.getBytes(StandardCharsets.UTF_8);
     }
 
     @Override
@@ -23,20 +179,27 @@ class CPMsg extends Msg {
             throw new IllegalMsgException();
         String rest = parts[1];
         if(rest.startsWith(CPCookieRequestMsg.CP_CREQ_HEADER)) {
-            parsedMsg = new CPCookieRequestMsg();
+            parsedMsg = pools != null ? pools.cookieRequests.acquire() : new CPCookieRequestMsg();
         } else if(rest.startsWith(CPCookieResponseMsg.CP_CRES_HEADER)) {
-            parsedMsg = new CPCookieResponseMsg();
+            parsedMsg = pools != null ? pools.cookieResponses.acquire() : new CPCookieResponseMsg();
+        } else if(rest.startsWith(CPCommandResponseBatchMsg.CP_CMD_RES_BATCH_HEADER)) {
+            parsedMsg = new CPCommandResponseBatchMsg();
         } else if(rest.startsWith(CPCommandResponseMsg.CP_CMD_RES_HEADER)) {
             // WICHTIG: zuerst command_response prüfen, da es mit "command" beginnt
-            parsedMsg = new CPCommandResponseMsg();
-        } else if(rest.startsWith(CPCommandMsg.CP_CMD_HEADER)) {
-            parsedMsg = new CPCommandMsg();
+            parsedMsg = pools != null ? pools.commandResponses.acquire() : new CPCommandResponseMsg();
+        } else if(rest.startsWith(CPCommandBatchMsg.CP_CMD_BATCH_HEADER)) {
+            parsedMsg = new CPCommandBatchMsg();
         } else {
-            // Fallback: treat as command
-            parsedMsg = new CPCommandMsg();
+            // command or fallback: treat as command
+            parsedMsg = pools != null ? pools.commands.acquire() : new CPCommandMsg();
         }
 
-        parsedMsg = (CPMsg) parsedMsg.parse(rest);
+        try {
+            parsedMsg = (CPMsg) parsedMsg.parse(rest);
+        } catch (IWProtocolException e) {
+            parsedMsg.release();
+            throw e;
+        }
         return parsedMsg;
     }
 
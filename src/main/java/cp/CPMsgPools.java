@@ -0,0 +1,29 @@
+package cp;
+
+import core.MsgPool;
+
+/*
+ * Pools for the CP message types created on the receive path
+ * Used by CPProtocol when pooling is enabled
+ */
+public class CPMsgPools {
+    private static final int CP_POOL_SIZE = 256;
+    final MsgPool<CPCookieRequestMsg> cookieRequests = new MsgPool<>(CPCookieRequestMsg::new, CP_POOL_SIZE);
+    final MsgPool<CPCookieResponseMsg> cookieResponses = new MsgPool<>(CPCookieResponseMsg::new, CP_POOL_SIZE);
+    final MsgPool<CPCommandMsg> commands = new MsgPool<>(CPCommandMsg::new, CP_POOL_SIZE);
+    final MsgPool<CPCommandResponseMsg> commandResponses = new MsgPool<>(CPCommandResponseMsg::new, CP_POOL_SIZE);
+
+    public MsgPool<CPCommandMsg> getCommands() { return commands; }
+    public MsgPool<CPCommandResponseMsg> getCommandResponses() { return commandResponses; }
+
+    // Messages of all types currently handed out -> a steadily growing value indicates a leak
+    public long getOutstanding() {
+        return cookieRequests.getOutstanding() + cookieResponses.getOutstanding()
+                + commands.getOutstanding() + commandResponses.getOutstanding();
+    }
+
+    public long getCreated() {
+        return cookieRequests.getCreated() + cookieResponses.getCreated()
+                + commands.getCreated() + commandResponses.getCreated();
+    }
+}
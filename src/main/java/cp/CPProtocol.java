@@ -5,24 +5,85 @@ import exceptions.*;
 import phy.*;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class CPProtocol extends Protocol {
     private static final int CP_TIMEOUT = 2000;
     private static final int CP_HASHMAP_SIZE = 20;
-    private int cookie;
-    private int id; // next command id
-    private Integer lastSentCommandId; // track last sent id for correlation
+    // validity of an issued cookie in ms
+    private static final long CP_COOKIE_LIFETIME = 60_000;
+    // CP messages buffered by the phy layer while another protocol reads the socket
+    private static final int CP_QUEUE_SIZE = 64;
+    // transmissions of a pipelined command before it fails
+    private static final int CP_ATTEMPTS = 3;
+    // largest batch frame, leaves room for the headers within PHY_BUFFER_SIZE: a peer on the
+    // DatagramSocket transport (PhyProtocol) truncates longer datagrams, PhyChannelProtocol does not
+    static final int CP_BATCH_BYTES = 900;
+    // bounds of the adaptive timeout in ms -> at most half the retry budget, every command is retransmitted once
+    private static final int CP_RTO_MIN = 20;
+    private static final int CP_RTO_MAX = CP_ATTEMPTS * CP_TIMEOUT / 2;
+    // adaptive timeouts retry as long as the fixed scheme would wait in total
+    private static final long CP_RETRY_BUDGET = (long) CP_ATTEMPTS * CP_TIMEOUT * 1_000_000L;
+    private volatile int cookie;
+    // client: System.currentTimeMillis() when the cookie expires, 0 if the server announced no lifetime
+    private volatile long cookieExpiresAt;
+    private volatile boolean cookieRenewal;
+    // client: cookie request in progress, shared by all threads needing a cookie meanwhile
+    private final AtomicReference<CompletableFuture<Void>> cookieFetch = new AtomicReference<>();
+    // client: answer to the cookie request in progress while the receiver of the async mode owns the socket
+    private volatile CompletableFuture<Boolean> cookieAnswer;
+    // System.currentTimeMillis() when the first request of the outstanding cookie request was sent
+    private volatile long cookieRequestedAt;
+    // async mode: response to the command sent last by send(), awaited by receive()
+    private volatile CompletableFuture<CPCommandResponseMsg> lastCommand;
+    private final AtomicInteger id = new AtomicInteger(); // next command id, shared by all sending threads
+    // send()/receive() pair: one command at a time, concurrent callers use sendCommand()/sendCommandAsync()
+    private volatile int lastSentCommandId; // track last sent id for correlation
+    private volatile long lastSentAt; // System.nanoTime() of the last command sent
+    // per peer round trip estimates, only used with adaptive timeouts
+    private final ConcurrentHashMap<PhyConfiguration, CPRttEstimator> rtt = new ConcurrentHashMap<>();
+    private volatile boolean adaptive;
+    // algorithm of the CRC field of commands sent by this client
+    private volatile CPChecksum checksum = CPChecksum.CRC32;
     private PhyConfiguration PhyConfigCommandServer;
     private PhyConfiguration PhyConfigCookieServer;
     private final PhyProtocol PhyProto;
     private final cp_role role;
-    HashMap<PhyConfiguration, Cookie> cookieMap;
-    ArrayList<CPCommandMsg> pendingCommands;
+    CPCookieTable cookieMap;
+    // if set, cookies are derived instead of stored
+    private volatile CPCookieMac cookieMac;
+    private final ArrayList<Msg> batchResult = new ArrayList<>();
+    // correlation table of commands sent with sendCommandAsync(), by command id
+    private final ConcurrentHashMap<Integer, PendingCommand> pending = new ConcurrentHashMap<>();
+    // commands waiting for a free slot, guards id, inFlight and windowSize as well
+    private final ArrayDeque<PendingCommand> window = new ArrayDeque<>();
+    private int windowSize = Integer.MAX_VALUE;
+    private int inFlight;
+    // commands waiting to be sent in one batch frame, guards batchLimit and batchDelay as well
+    private final ArrayList<PendingCommand> coalescing = new ArrayList<>();
+    private int coalescingBytes;
+    private int batchLimit;
+    private long batchDelay;
+    private final AtomicBoolean asyncStarted = new AtomicBoolean();
+    private CPMsgPools pools;
+    // stateless dispatcher for incoming messages
+    private CPMsg parser = new CPMsg();
 
     private enum cp_role {
         CLIENT, COOKIE, COMMAND
@@ -34,6 +95,8 @@ public class CPProtocol extends Protocol {
         this.PhyProto = phyP;
         this.role = cp_role.CLIENT;
         this.cookie = -1;
+        // keep CP messages read by other protocols sharing the phy layer
+        this.PhyProto.register(proto_id.CP, CP_QUEUE_SIZE);
     }
 
     // Constructor for servers
@@ -41,39 +104,420 @@ public class CPProtocol extends Protocol {
         this.PhyProto = phyP;
         if (isCookieServer) {
             this.role = cp_role.COOKIE;
-            this.cookieMap = new HashMap<>();
+            this.cookieMap = new CPCookieTable(CP_HASHMAP_SIZE, CP_COOKIE_LIFETIME, false);
         } else {
+            // commands are queued and executed by CPCommandProcessor
             this.role = cp_role.COMMAND;
-            this.pendingCommands = new ArrayList<>();
         }
     }
 
+    /*
+     * Cookie server: replace the cookie table, e.g. by a large one that evicts instead of rejecting
+     * Must be set before receiving starts.
+     */
+    public void setCookieTable(CPCookieTable table) {
+        this.cookieMap = table;
+    }
+
+    // Cookie server: issued cookies and their counters, null for other roles
+    public CPCookieTable getCookieTable() {
+        return this.cookieMap;
+    }
+
+    /*
+     * Servers: opt-in stateless cookies, see CPCookieMac
+     * The cookie server issues MAC-derived cookies without storing them, and any server knowing
+     * the same secret checks them with isCookieValid(). null switches back to the cookie table.
+     */
+    public void setStatelessCookies(CPCookieMac mac) {
+        this.cookieMac = mac;
+    }
+
+    /*
+     * Servers: was the cookie issued to the client and is it still valid
+     * Stateless cookies are checked without any shared state, otherwise the cookie table is looked up.
+     */
+    public boolean isCookieValid(PhyConfiguration peer, int cookie) {
+        CPCookieMac mac = this.cookieMac;
+        if (mac != null)
+            return mac.isValid(peer, cookie);
+        return this.cookieMap != null && this.cookieMap.isValid(peer, cookie);
+    }
+
     public void setCookieServer(InetAddress rname, int rp) throws UnknownHostException {
         this.PhyConfigCookieServer = new PhyConfiguration(rname, rp, proto_id.CP);
     }
 
     @Override
     public void send(String s, Configuration config) throws IOException, IWProtocolException {
+        // the receiver owns the socket (e.g. for cookie renewal) -> receive() waits for the response
+        if (this.role == cp_role.CLIENT && this.asyncStarted.get()) {
+            this.lastCommand = sendAsync(s, null);
+            return;
+        }
         if (this.role == cp_role.CLIENT) {
-            if (cookie < 0) {
+            if (needsCookie()) {
                 // Request a new cookie from server
                 // Either updates the cookie attribute or returns with an exception
-                requestCookie();
+                acquireCookie(false);
             }
         }
 
         // Task 1.2.1.a: Create a command message object
+        // -> fields only, the phy layer encodes the message straight into its send buffer
         CPCommandMsg msg = new CPCommandMsg();
-        int currentId = this.id++;
-        msg.create(currentId, s);
+        msg.setChecksum(this.checksum);
+        int currentId = this.id.getAndIncrement();
+        msg.prepare(currentId, s);
         this.lastSentCommandId = currentId;
+        sendCommand(msg, config);
+    }
+
+    /*
+     * Send a command the application already holds as bytes (e.g. a large print command)
+     * The buffer is handed down to the phy layer as is -> it must not change during the call,
+     * in async mode not before receive() returned (the command may be retransmitted).
+     */
+    public void send(ByteBuffer command, Configuration config) throws IOException, IWProtocolException {
+        if (this.role == cp_role.CLIENT && this.asyncStarted.get()) {
+            this.lastCommand = sendAsync(null, command);
+            return;
+        }
+        if (this.role == cp_role.CLIENT && needsCookie())
+            acquireCookie(false);
+        CPCommandMsg msg = new CPCommandMsg();
+        msg.setChecksum(this.checksum);
+        int currentId = this.id.getAndIncrement();
+        msg.prepare(currentId, command);
+        this.lastSentCommandId = currentId;
+        sendCommand(msg, config);
+    }
+
+    /*
+     * Client: send a command without waiting for the response (pipelined mode)
+     * At most window commands are outstanding (see setWindow), further ones are queued and sent
+     * as soon as an earlier one completed. A command without response is retransmitted after
+     * CP_TIMEOUT ms, individually and with the same id, up to CP_ATTEMPTS times
+     * (with adaptive timeouts: after the current RTO, within the same total time).
+     * The future is completed by the phy layer's I/O thread once the matching response arrives,
+     * with CookieTimeoutException if the server rejected the command,
+     * or with TimeoutException if no response arrived after the last attempt.
+     * After the first call send() and receive() also go through the receiver of the async mode:
+     * receive() then returns the response to the last send() and throws IllegalStateException
+     * if no such command is outstanding.
+     */
+    public CompletableFuture<CPCommandResponseMsg> sendCommandAsync(String command) {
+        return sendAsync(command, null);
+    }
+
+    // either command or bytes
+    private CompletableFuture<CPCommandResponseMsg> sendAsync(String command, ByteBuffer bytes) {
+        CompletableFuture<CPCommandResponseMsg> f = new CompletableFuture<>();
+        // the receiver runs before the first cookie request -> it gets the cookie response as well
+        if (this.asyncStarted.compareAndSet(false, true))
+            receiveResponseAsync();
+        // never blocks: without a cookie the command is sent by the thread that delivers the cookie
+        cookieAsync(false).whenComplete((v, e) -> {
+            if (e != null)
+                f.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+            else
+                submit(command, bytes, f);
+        });
+        return f;
+    }
+
+    private void submit(String command, ByteBuffer bytes, CompletableFuture<CPCommandResponseMsg> f) {
+        CPCommandMsg msg = new CPCommandMsg();
+        msg.setChecksum(this.checksum);
+        int currentId = this.id.getAndIncrement();
+        if (bytes != null)
+            msg.prepare(currentId, bytes);
+        else
+            msg.prepare(currentId, command);
+        PendingCommand p = new PendingCommand(msg, f);
+        this.pending.put(currentId, p);
+        f.whenComplete((r, e) -> {
+            this.pending.remove(currentId, p);
+            leaveWindow(p);
+        });
+        boolean admitted;
+        synchronized (this.window) {
+            admitted = this.inFlight < this.windowSize;
+            if (admitted) {
+                this.inFlight++;
+                p.admitted = true;
+            } else {
+                this.window.add(p);
+            }
+        }
+        if (admitted)
+            transmit(p);
+    }
+
+    /*
+     * Client: send a command and wait for its response, safe to call from any number of threads at once
+     * All callers share the socket, the receiver of the async mode hands every response to the thread
+     * waiting for its id (see sendCommandAsync). The caller only blocks on a future, so virtual threads
+     * do not pin a carrier thread while waiting.
+     * Fails like receive(): CookieTimeoutException if the server rejected the command or did not answer.
+     */
+    public CPCommandResponseMsg sendCommand(String command) throws IOException, IWProtocolException {
+        return awaitResponse(sendCommandAsync(command));
+    }
+
+    private static CPCommandResponseMsg awaitResponse(CompletableFuture<CPCommandResponseMsg> f)
+            throws IOException, IWProtocolException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof IWProtocolException)
+                throw (IWProtocolException) cause;
+            if (cause instanceof TimeoutException)
+                throw new CookieTimeoutException();
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /*
+     * Maximum number of commands sent with sendCommandAsync() that wait for their response at the same time
+     * Default: no limit
+     */
+    public void setWindow(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("window must be >= 1");
+        synchronized (this.window) {
+            this.windowSize = size;
+        }
+    }
+
+    // Commands sent and not yet completed
+    public int getInFlight() {
+        synchronized (this.window) {
+            return this.inFlight;
+        }
+    }
+
+    // Commands sent with sendCommandAsync() and not yet completed, including the ones waiting for the window
+    public int getPending() {
+        return this.pending.size();
+    }
+
+    // a completed command frees its window slot for the next queued one
+    private void leaveWindow(PendingCommand p) {
+        PendingCommand next;
+        synchronized (this.window) {
+            if (!p.admitted) {
+                this.window.remove(p);
+                return;
+            }
+            next = this.window.poll();
+            if (next == null)
+                this.inFlight--;
+            else
+                next.admitted = true;
+        }
+        if (next != null)
+            transmit(next);
+    }
+
+    private void transmit(PendingCommand p) {
+        if (p.future.isDone())
+            return;
+        // first transmissions are coalesced, retransmissions go out on their own
+        if (p.attempts == 0 && this.batchLimit > 1) {
+            coalesce(p);
+            return;
+        }
+        markSent(p);
+        try {
+            this.PhyProto.send(p.msg, this.PhyConfigCommandServer);
+        } catch (IOException e) {
+            p.future.completeExceptionally(e);
+            return;
+        }
+        scheduleRetransmit(p);
+    }
+
+    private static void markSent(PendingCommand p) {
+        p.sentAt = System.nanoTime();
+        if (p.attempts++ == 0)
+            p.firstSentAt = p.sentAt;
+    }
 
+    private void scheduleRetransmit(PendingCommand p) {
+        int timeout = timeout(getRttEstimator(this.PhyConfigCommandServer));
+        CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS).execute(() -> retransmit(p));
+    }
+
+    /*
+     * Client: coalesce commands sent with sendCommandAsync() into CPCommandBatchMsg frames
+     * A frame is sent once it holds maxCommands commands, would exceed CP_BATCH_BYTES or the oldest
+     * command in it waited delay microseconds. maxCommands <= 1 disables batching (default).
+     * The server must answer batches (see CPCommandBatchMsg), retransmissions are sent as single commands.
+     */
+    public void setBatching(int maxCommands, long delay) {
+        synchronized (this.coalescing) {
+            this.batchLimit = maxCommands;
+            this.batchDelay = delay;
+        }
+    }
+
+    private void coalesce(PendingCommand p) {
+        int length = 1 + p.msg.fieldsLength();
+        List<PendingCommand> before = null;
+        List<PendingCommand> full = null;
+        boolean first;
+        synchronized (this.coalescing) {
+            // p does not fit into the current frame anymore
+            if (!this.coalescing.isEmpty() && this.coalescingBytes + length > CP_BATCH_BYTES)
+                before = takeCoalesced();
+            this.coalescing.add(p);
+            this.coalescingBytes += length;
+            first = this.coalescing.size() == 1;
+            if (this.coalescing.size() >= this.batchLimit || this.coalescingBytes >= CP_BATCH_BYTES) {
+                full = takeCoalesced();
+                first = false;
+            }
+        }
+        if (before != null)
+            sendBatch(before);
+        if (full != null)
+            sendBatch(full);
+        // the first command of a frame starts the delay
+        if (first)
+            CompletableFuture.delayedExecutor(this.batchDelay, TimeUnit.MICROSECONDS).execute(() -> {
+                List<PendingCommand> late;
+                synchronized (this.coalescing) {
+                    late = this.coalescing.isEmpty() ? null : takeCoalesced();
+                }
+                if (late != null)
+                    sendBatch(late);
+            });
+    }
+
+    // caller holds the coalescing lock
+    private List<PendingCommand> takeCoalesced() {
+        List<PendingCommand> batch = new ArrayList<>(this.coalescing);
+        this.coalescing.clear();
+        this.coalescingBytes = 0;
+        return batch;
+    }
+
+    private void sendBatch(List<PendingCommand> batch) {
+        CPCommandBatchMsg msg = new CPCommandBatchMsg();
+        for (PendingCommand p : batch) {
+            markSent(p);
+            msg.add(p.msg);
+        }
+        try {
+            // a single command needs no batch frame
+            if (batch.size() == 1)
+                this.PhyProto.send(batch.get(0).msg, this.PhyConfigCommandServer);
+            else
+                this.PhyProto.send(msg, this.PhyConfigCommandServer);
+        } catch (IOException e) {
+            for (PendingCommand p : batch)
+                p.future.completeExceptionally(e);
+            return;
+        }
+        for (PendingCommand p : batch)
+            scheduleRetransmit(p);
+    }
+
+    private void retransmit(PendingCommand p) {
+        if (p.future.isDone())
+            return;
+        CPRttEstimator est = getRttEstimator(this.PhyConfigCommandServer);
+        if (est != null)
+            est.backoff(p.sentAt);
+        if (!mayRetry(est, p.attempts, p.firstSentAt)) {
+            p.future.completeExceptionally(new TimeoutException());
+            return;
+        }
+        transmit(p);
+    }
+
+    // keep exactly one receiveAsync() outstanding, every response is matched to its command by id
+    private void receiveResponseAsync() {
+        this.PhyProto.receiveAsync().whenComplete((in, e) -> {
+            if (e != null) {
+                for (PendingCommand p : this.pending.values())
+                    p.future.completeExceptionally(e);
+                CompletableFuture<Boolean> answer = this.cookieAnswer;
+                if (answer != null)
+                    answer.completeExceptionally(e);
+                return;
+            }
+            dispatchResponse(in);
+            receiveResponseAsync();
+        });
+    }
+
+    private void dispatchResponse(Msg in) {
+        if (((PhyConfiguration) in.getConfiguration()).getPid() != proto_id.CP) {
+            in.release();
+            return;
+        }
+        CPMsg resMsg;
+        try {
+            resMsg = parse(in);
+        } catch (IWProtocolException e) {
+            return;
+        }
+        if (resMsg instanceof CPCommandResponseBatchMsg) {
+            for (CPCommandResponseMsg responseMsg : ((CPCommandResponseBatchMsg) resMsg).getResponses())
+                completeCommand(responseMsg);
+        } else if (resMsg instanceof CPCommandResponseMsg) {
+            completeCommand((CPCommandResponseMsg) resMsg);
+        } else {
+            // only the answer to the outstanding request, late duplicates would revive replaced cookies
+            CompletableFuture<Boolean> answer = this.cookieAnswer;
+            if (resMsg instanceof CPCookieResponseMsg && answer != null && !answer.isDone()) {
+                CPCookieResponseMsg res = (CPCookieResponseMsg) resMsg;
+                acceptCookie(res, this.cookieRequestedAt);
+                answer.complete(res.getSuccess());
+            }
+            resMsg.release();
+        }
+    }
+
+    private void completeCommand(CPCommandResponseMsg responseMsg) {
+        PendingCommand p = this.pending.remove(responseMsg.getId());
+        CPRttEstimator est = getRttEstimator(this.PhyConfigCommandServer);
+        if (p != null && est != null && p.attempts == 1)
+            est.sample(System.nanoTime() - p.sentAt);
+        if (p == null) {
+            // response to a retransmission that was already answered
+            responseMsg.release();
+        } else if (!responseMsg.isSuccess()) {
+            responseMsg.release();
+            p.future.completeExceptionally(new CookieTimeoutException());
+        } else if (!p.future.complete(responseMsg)) {
+            responseMsg.release();
+        }
+    }
+
+    /*
+     * Server: answer a command (CPCommandResponseMsg) or a batch of commands (CPCommandResponseBatchMsg)
+     */
+    public void sendResponse(CPMsg response, Configuration config) throws IOException {
+        this.PhyProto.send(response, (PhyConfiguration) config);
+    }
+
+    private void sendCommand(CPCommandMsg msg, Configuration config) throws IOException {
         // Task 1.2.1.b: Send the command to the Command Server via the PHY layer
+        this.lastSentAt = System.nanoTime();
         if (this.role == cp_role.CLIENT) {
-            this.PhyProto.send(new String(msg.getDataBytes()), this.PhyConfigCommandServer);
+            this.PhyProto.send(msg, this.PhyConfigCommandServer);
         } else {
             // For servers, use the provided configuration
-            this.PhyProto.send(new String(msg.getDataBytes()), config);
+            this.PhyProto.send(msg, (PhyConfiguration) config);
         }
     }
 
@@ -81,28 +525,115 @@ public class CPProtocol extends Protocol {
     public Msg receive() throws IOException, IWProtocolException {
         // For clients: wait for command response with timeout
         if (this.role == cp_role.CLIENT) {
+            if (this.asyncStarted.get()) {
+                // the async receiver owns the socket -> only the response to send() can be waited for
+                CompletableFuture<CPCommandResponseMsg> last = this.lastCommand;
+                if (last == null)
+                    throw new IllegalStateException("No command sent with send() is waiting for its response");
+                this.lastCommand = null;
+                return awaitResponse(last);
+            }
             return receiveCommandResponse();
         }
 
         // For servers: normal receive
+        Msg phyMsg;
         try {
             // Receive message from physical layer
-            Msg phyMsg = this.PhyProto.receive();
+            phyMsg = this.PhyProto.receive();
+        } catch (Exception e) {
+            // If any exception occurs while receiving, return null
+            return null;
+        }
+        return process(phyMsg);
+    }
+
+    /*
+     * Server side: receive up to max messages with one call and process each of them.
+     * Waits at most timeout ms (0 = no limit) for the first message.
+     * Returns the processed messages; the list is reused by the next call.
+     */
+    public List<Msg> receiveBatch(int max, int timeout) throws IOException {
+        this.batchResult.clear();
+        PhyMsgBatch in = this.PhyProto.receiveBatch(max, timeout);
+        for (int i = 0; i < in.size(); i++) {
+            Msg cpmIn = process(in.get(i));
+            if (cpmIn != null)
+                this.batchResult.add(cpmIn);
+        }
+        return this.batchResult;
+    }
+
+    /*
+     * Opt-in pooling of received message objects on this layer and the phy layer below
+     * If enabled, every message returned by receive()/receiveBatch() must be handed back
+     * with Msg.release() once it has been processed. Must be set before receiving starts.
+     */
+    public void setPooling(boolean enable) {
+        this.pools = enable ? new CPMsgPools() : null;
+        this.parser = new CPMsg(this.pools);
+        this.PhyProto.setPooling(enable);
+    }
+
+    // pool counters for leak detection, null if pooling is disabled
+    public CPMsgPools getMsgPools() {
+        return this.pools;
+    }
+
+    /*
+     * Parse the CP message carried by a phy message
+     * Without pooling the phy message is released right away -> it is not needed once the CP message exists.
+     * With pooling a command or response keeps viewing the pooled phy buffer (no copy per datagram), so the
+     * phy message is released together with the CP message. Trade-off: a CP message held by the application
+     * also holds a phy buffer, the phy pool allocates a new one for the next datagram in the meantime.
+     */
+    private CPMsg parse(Msg phyMsg) throws IWProtocolException {
+        Configuration config = phyMsg.getConfiguration();
+        Msg release = phyMsg;
+        try {
+            CPMsg cpmIn;
+            if (phyMsg instanceof PhyMsg && ((PhyMsg) phyMsg).getBuffer() != null) {
+                // received datagram -> check the CRC on the raw bytes before decoding anything
+                PhyMsg pm = (PhyMsg) phyMsg;
+                int from = pm.getPayloadOffset();
+                cpmIn = (CPMsg) this.parser.parse(pm.getBuffer(), from, from + pm.getPayloadLength());
+                if (this.pools != null && cpmIn.retain(phyMsg))
+                    release = null;
+            } else {
+                cpmIn = (CPMsg) this.parser.parse(phyMsg.getData());
+            }
+            cpmIn.setConfiguration(config);
+            return cpmIn;
+        } finally {
+            if (release != null)
+                release.release();
+        }
+    }
 
+    // Server processing of a single message received from the phy layer, also used by CPShardedCookieServer
+    Msg process(Msg phyMsg) {
+        try {
             if (phyMsg == null) {
                 return null;
             }
 
             // Parse the received message
-            CPMsg cpmIn = (CPMsg) new CPMsg().parse(phyMsg.getData());
-            cpmIn.setConfiguration(phyMsg.getConfiguration());
+            CPMsg cpmIn = parse(phyMsg);
 
             // Process based on role
-            if (this.role == cp_role.COOKIE) {
-                cookie_process(cpmIn);
-                return cpmIn;
-            } else if (this.role == cp_role.COMMAND) {
-                return command_process(cpmIn);
+            try {
+                if (this.role == cp_role.COOKIE) {
+                    cookie_process(cpmIn);
+                    return cpmIn;
+                } else if (this.role == cp_role.COMMAND) {
+                    Msg cmd = command_process(cpmIn);
+                    if (cmd == null)
+                        cpmIn.release();
+                    return cmd;
+                }
+            } catch (Exception e) {
+                cpmIn.release();
+                throw e;
             }
 
             return cpmIn;
@@ -115,79 +646,132 @@ public class CPProtocol extends Protocol {
         }
     }
 
+    /*
+     * Checksum of the commands sent from now on, the server answers with the same one
+     * Default: CRC32, CRC32C is cheaper to compute but requires a server that knows it.
+     */
+    public void setChecksum(CPChecksum checksum) {
+        this.checksum = checksum;
+    }
+
+    /*
+     * Opt-in adaptive timeouts: the wait for a response follows the measured round trip time
+     * of the peer (see CPRttEstimator) and is doubled after every timeout. Requests are repeated
+     * as long as they fit into the time the fixed scheme waits in total (CP_ATTEMPTS * CP_TIMEOUT).
+     * Default: fixed CP_TIMEOUT with CP_ATTEMPTS attempts.
+     */
+    public void setAdaptiveTimeout(boolean enable) {
+        this.adaptive = enable;
+    }
+
+    /*
+     * Round trip estimates of a peer for monitoring, null if adaptive timeouts are disabled
+     */
+    public CPRttEstimator getRttEstimator(PhyConfiguration peer) {
+        if (!this.adaptive)
+            return null;
+        return this.rtt.computeIfAbsent(peer, p -> new CPRttEstimator(CP_TIMEOUT, CP_RTO_MIN, CP_RTO_MAX));
+    }
+
+    private static int timeout(CPRttEstimator est) {
+        return est == null ? CP_TIMEOUT : (int) est.getRto();
+    }
+
+    // may another attempt be started, start is the System.nanoTime() of the first one
+    private static boolean mayRetry(CPRttEstimator est, int attempts, long start) {
+        if (est == null)
+            return attempts < CP_ATTEMPTS;
+        return System.nanoTime() - start < CP_RETRY_BUDGET;
+    }
+
+    /*
+     * Next message from the phy layer received before deadline (a System.nanoTime() value)
+     * -> only CP messages if the phy layer demultiplexes by protocol id
+     */
+    private Msg receivePhy(long deadline) throws IOException {
+        if (this.PhyProto.hasQueue(proto_id.CP))
+            return this.PhyProto.receiveUntil(proto_id.CP, deadline);
+        return this.PhyProto.receiveUntil(deadline);
+    }
+
+    private static long deadlineIn(int timeout) {
+        return System.nanoTime() + timeout * 1_000_000L;
+    }
+
     // Method for clients to receive command responses
     private Msg receiveCommandResponse() throws IOException, IWProtocolException {
-        boolean waitForResp = true;
         int count = 0;
-        Msg resMsg = null;
+        CPRttEstimator est = getRttEstimator(this.PhyConfigCommandServer);
+        long start = System.nanoTime();
 
-        while (waitForResp && count < 3) {
+        while (mayRetry(est, count, start)) {
+            // Task 1.2.2.a: For each sent command message, the client waits a maximum of
+            // two seconds (2000ms) for a response from the Command Server.
+            // -> one deadline per attempt, unrelated or corrupt messages do not restart the wait
+            long deadline = deadlineIn(timeout(est));
             try {
-                // Task 1.2.2.a: For each sent command message, the client waits a maximum of
-                // two seconds (2000ms) for a response from the Command Server. Call the
-                // corresponding receive method of the PHY layer.
-                Msg in = this.PhyProto.receive(2000); // 2 seconds timeout
+                while (true) {
+                    Msg in = receivePhy(deadline);
+                    if (in == null)
+                        break;
 
-                if (in == null) {
-                    count += 1;
-                    continue;
-                }
-
-                // Check if message is from CP protocol
-                if (((PhyConfiguration) in.getConfiguration()).getPid() != proto_id.CP) {
-                    continue;
-                }
+                    // Check if message is from CP protocol
+                    if (((PhyConfiguration) in.getConfiguration()).getPid() != proto_id.CP) {
+                        in.release();
+                        continue;
+                    }
 
-                // Task 1.2.2.b: Call the message parser to create a CP message object from the
-                // received string object according to the protocol specification.
-                try {
-                    resMsg = new CPMsg().parse(in.getData());
-                    resMsg.setConfiguration(in.getConfiguration());
+                    // Task 1.2.2.b: Call the message parser to create a CP message object from the
+                    // received string object according to the protocol specification.
+                    // If the parser throws an exception, the message is discarded.
+                    CPMsg resMsg;
+                    try {
+                        resMsg = parse(in);
+                    } catch (IWProtocolException e) {
+                        continue;
+                    }
+                    if (!(resMsg instanceof CPCommandResponseMsg)) {
+                        // Ignore other message types, also late duplicates of a cookie response
+                        resMsg.release();
+                        continue;
+                    }
 
                     // Task 1.2.2.c: Check if the response matches the command message by comparing
                     // the message ID of the received message with the ID of the sent message.
-                    if (resMsg instanceof CPCommandResponseMsg) {
-                        CPCommandResponseMsg responseMsg = (CPCommandResponseMsg) resMsg;
-                        if (this.lastSentCommandId == null || responseMsg.getId() != this.lastSentCommandId) {
-                            // Not for us, continue waiting
-                            continue;
-                        }
-                        // Task 1.2.2.d: Check if the Command Server has accepted the command.
-                        if (!responseMsg.isSuccess()) {
-                            throw new CookieTimeoutException();
-                        }
-                        // Task 1.2.2.e: Return an appropriate response to the client.
-                        waitForResp = false;
-                    } else {
-                        // Ignore other message types
+                    CPCommandResponseMsg responseMsg = (CPCommandResponseMsg) resMsg;
+                    if (responseMsg.getId() != this.lastSentCommandId) {
+                        // Not for us, continue waiting
+                        responseMsg.release();
+                        continue;
+                    }
+                    // Task 1.2.2.d: Check if the Command Server has accepted the command.
+                    if (!responseMsg.isSuccess()) {
+                        responseMsg.release();
+                        throw new CookieTimeoutException();
                     }
-                } catch (CookieTimeoutException e) {
-                    // Re-throw CookieTimeoutException immediately
-                    throw e;
-                } catch (IWProtocolException e) {
-                    // Task 1.2.2.b: If the parser throws an exception, the message should be
-                    // discarded.
+                    // Task 1.2.2.e: Return an appropriate response to the client.
+                    if (est != null)
+                        est.sample(System.nanoTime() - this.lastSentAt);
+                    return responseMsg;
                 }
-
             } catch (SocketTimeoutException e) {
-                count += 1;
-            } catch (Exception e) {
-                count += 1;
+                // deadline passed without a matching response
+                if (est != null)
+                    est.backoff();
+            } catch (IOException e) {
+                System.out.println("[CPProtocol] Receive failed: " + e.getMessage());
             }
+            count += 1;
         }
 
-        // If no valid response received after 3 attempts
-        if (waitForResp && (resMsg == null || count >= 3)) {
-            throw new CookieTimeoutException();
-        }
-
-        return resMsg;
+        // No valid response received after 3 attempts
+        throw new CookieTimeoutException();
     }
 
     // CommandServer processing of incoming messages
-    // Only CPCommandMsg are processed, all others are ignored
+    // Only CPCommandMsg and CPCommandBatchMsg are processed, all others are ignored
     private Msg command_process(CPMsg cpmIn) throws IWProtocolException {
-        if (cpmIn instanceof CPCommandMsg) {
+        if (cpmIn instanceof CPCommandMsg || cpmIn instanceof CPCommandBatchMsg) {
             return cpmIn;
         }
         return null;
@@ -200,18 +784,6 @@ public class CPProtocol extends Protocol {
         if (cpmIn instanceof CPCookieRequestMsg) {
             PhyConfiguration clientConfig = (PhyConfiguration) cpmIn.getConfiguration();
 
-            // Task 2.1.2.a: The mappings of clients to cookies are stored in a Java
-            // HashMap.
-            // There shall never be more than 20 entries in the HashMap.
-            // Check if new client and limit reached
-            if (!cookieMap.containsKey(clientConfig) && cookieMap.size() >= CP_HASHMAP_SIZE) {
-                // Reject request
-                CPCookieResponseMsg response = new CPCookieResponseMsg(false);
-                response.create("Cookie limit reached");
-                this.PhyProto.send(new String(response.getDataBytes()), clientConfig);
-                return;
-            }
-
             // Task 2.1.2.b: Implementation decision on premature cookie renewal.
             // Decision: We allow clients to request a new cookie even if their old one hasn't expired yet.
             // 
@@ -221,79 +793,295 @@ public class CPProtocol extends Protocol {
             // Rationale for our choice: Clients may restart or lose their state, which would
             // require them to request a new cookie. Rejecting such requests would lock them out
             // until expiration, which is impractical for development, testing, and real-world
-            // scenarios. Since HashMap.put() simply overwrites the existing entry, there are no
+            // scenarios. Since CPCookieTable.put() simply overwrites the existing entry, there are no
             // security concerns with allowing early renewal. The old cookie is effectively
             // invalidated when replaced, which is the desired behavior.
 
+            CPCookieMac mac = this.cookieMac;
+            if (mac != null) {
+                // stateless: nothing to store, no limit on the number of clients
+                long now = System.currentTimeMillis();
+                CPCookieResponseMsg response = new CPCookieResponseMsg(true);
+                response.create(mac.issue(clientConfig, now) + " " + mac.validFor(now));
+                this.PhyProto.send(response, clientConfig);
+                return;
+            }
+
             // Generate a unique cookie using current time in milliseconds
             int newCookie = (int) System.currentTimeMillis();
-            Cookie cookieObj = new Cookie(System.currentTimeMillis(), newCookie);
 
-            // Store in HashMap (Task 2.1.2.a) - this handles both new entries and updates
-            // (renewals)
-            cookieMap.put(clientConfig, cookieObj);
+            // Task 2.1.2.a: The mappings of clients to cookies are stored in a concurrent table
+            // with at most CP_HASHMAP_SIZE entries (unless configured otherwise, see setCookieTable()).
+            // This handles both new entries and updates (renewals), expired cookies free their slot.
+            if (cookieMap.put(clientConfig, newCookie) == null) {
+                // Reject request
+                CPCookieResponseMsg response = new CPCookieResponseMsg(false);
+                response.create("Cookie limit reached");
+                this.PhyProto.send(response, clientConfig);
+                return;
+            }
 
             // Task 2.1.2.c: Send an appropriate response message to the client.
+            // -> with the lifetime, so the client can renew the cookie before it expires
             CPCookieResponseMsg response = new CPCookieResponseMsg(true);
-            response.create(String.valueOf(newCookie));
+            response.create(newCookie + " " + cookieMap.getLifetime());
 
             // Send response back
-            this.PhyProto.send(new String(response.getDataBytes()), clientConfig);
+            this.PhyProto.send(response, clientConfig);
         }
     }
 
-    // Method for the client to request a cookie
+    /*
+     * Method for the client to request a cookie
+     * Single-flight: only the first caller talks to the cookie server, threads calling while its request
+     * is in progress wait for it and share its cookie or its exception.
+     */
     public void requestCookie() throws IOException, IWProtocolException {
+        acquireCookie(true);
+    }
+
+    /*
+     * force: request a new cookie even if the current one is valid, otherwise only if it is needed
+     * -> a sender that saw no cookie but comes after a finished request does not send another one
+     */
+    private void acquireCookie(boolean force) throws IOException, IWProtocolException {
+        // the socket belongs to the receiver of the async mode, it hands the response over
+        if (this.asyncStarted.get()) {
+            awaitCookie(cookieAsync(force));
+            return;
+        }
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        CompletableFuture<Void> current = this.cookieFetch.compareAndExchange(null, f);
+        if (current != null) {
+            try {
+                current.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof IWProtocolException)
+                    throw (IWProtocolException) cause;
+                throw e;
+            }
+            return;
+        }
+        try {
+            if (force || needsCookie())
+                fetchCookie();
+        } catch (IOException | IWProtocolException | RuntimeException e) {
+            this.cookieFetch.set(null);
+            f.completeExceptionally(e);
+            throw e;
+        }
+        this.cookieFetch.set(null);
+        f.complete(null);
+    }
+
+    private void fetchCookie() throws IOException, IWProtocolException {
         CPCookieRequestMsg reqMsg = new CPCookieRequestMsg();
         reqMsg.create(null);
-        Msg resMsg = new CPMsg();
+        Msg resMsg = null;
 
         boolean waitForResp = true;
         int count = 0;
-        while (waitForResp && count < 3) {
+        int sends = 0;
+        CPRttEstimator est = getRttEstimator(this.PhyConfigCookieServer);
+        long start = System.nanoTime();
+        long requestedAt = System.currentTimeMillis();
+        while (waitForResp && mayRetry(est, count, start)) {
             this.PhyProto.send(new String(reqMsg.getDataBytes()), this.PhyConfigCookieServer);
+            long sentAt = System.nanoTime();
+            sends++;
 
             try {
-                Msg in = this.PhyProto.receive(CP_TIMEOUT);
+                Msg in = receivePhy(sentAt + timeout(est) * 1_000_000L);
                 if (in == null) {
                     count += 1;
                     continue;
                 }
-                if (((PhyConfiguration) in.getConfiguration()).getPid() != proto_id.CP)
+                if (((PhyConfiguration) in.getConfiguration()).getPid() != proto_id.CP) {
+                    in.release();
                     continue;
-                resMsg = ((CPMsg) resMsg).parse(in.getData());
-                if (resMsg instanceof CPCookieResponseMsg)
+                }
+                resMsg = parse(in);
+                if (resMsg instanceof CPCookieResponseMsg) {
                     waitForResp = false;
+                    // only unambiguous samples: the request was sent once
+                    if (est != null && sends == 1)
+                        est.sample(System.nanoTime() - sentAt);
+                } else {
+                    resMsg.release();
+                }
             } catch (SocketTimeoutException e) {
                 count += 1;
+                if (est != null)
+                    est.backoff();
             } catch (IWProtocolException ignored) {
             }
         }
 
-        if (count == 3)
+        if (waitForResp)
             throw new CookieRequestException();
         if (resMsg instanceof CPCookieResponseMsg && !((CPCookieResponseMsg) resMsg).getSuccess()) {
             throw new CookieRequestException();
         }
         assert resMsg instanceof CPCookieResponseMsg;
-        this.cookie = ((CPCookieResponseMsg) resMsg).getCookie();
+        acceptCookie((CPCookieResponseMsg) resMsg, requestedAt);
+        resMsg.release();
     }
-}
 
-class Cookie {
-    private final long timeOfCreation;
-    private final int cookieValue;
+    /*
+     * Async mode: single-flight cookie request that does not block the caller
+     * The future completes once a cookie is available -> on the receiver thread if one had to be requested.
+     * Retries like fetchCookie(), driven by timers instead of a waiting thread.
+     */
+    private CompletableFuture<Void> cookieAsync(boolean force) {
+        if (!force && !needsCookie())
+            return CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        CompletableFuture<Void> current = this.cookieFetch.compareAndExchange(null, f);
+        if (current != null)
+            return current;
+        if (!force && !needsCookie()) {
+            this.cookieFetch.set(null);
+            f.complete(null);
+            return f;
+        }
+        // a late answer to an earlier attempt is as good as the latest one
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        AtomicInteger sends = new AtomicInteger();
+        long start = System.nanoTime();
+        this.cookieRequestedAt = System.currentTimeMillis();
+        this.cookieAnswer = answer;
+        answer.whenComplete((ok, e) -> {
+            this.cookieAnswer = null;
+            this.cookieFetch.set(null);
+            CPRttEstimator est = getRttEstimator(this.PhyConfigCookieServer);
+            if (e != null) {
+                f.completeExceptionally(e);
+            } else if (!ok) {
+                f.completeExceptionally(new CookieRequestException());
+            } else {
+                // only unambiguous samples: the request was sent once
+                if (est != null && sends.get() == 1)
+                    est.sample(System.nanoTime() - start);
+                f.complete(null);
+            }
+        });
+        sendCookieRequest(answer, sends, start);
+        return f;
+    }
+
+    private void sendCookieRequest(CompletableFuture<Boolean> answer, AtomicInteger sends, long start) {
+        if (answer.isDone())
+            return;
+        CPRttEstimator est = getRttEstimator(this.PhyConfigCookieServer);
+        if (!mayRetry(est, sends.get(), start)) {
+            answer.completeExceptionally(new CookieRequestException());
+            return;
+        }
+        CPCookieRequestMsg reqMsg = new CPCookieRequestMsg();
+        reqMsg.create(null);
+        try {
+            this.PhyProto.send(new String(reqMsg.getDataBytes()), this.PhyConfigCookieServer);
+        } catch (IOException | IWProtocolException e) {
+            answer.completeExceptionally(e);
+            return;
+        }
+        sends.incrementAndGet();
+        CompletableFuture.delayedExecutor(timeout(est), TimeUnit.MILLISECONDS).execute(() -> {
+            if (answer.isDone())
+                return;
+            if (est != null)
+                est.backoff();
+            sendCookieRequest(answer, sends, start);
+        });
+    }
 
-    public Cookie(long toc, int c) {
-        this.timeOfCreation = toc;
-        this.cookieValue = c;
+    private static void awaitCookie(CompletableFuture<Void> f) throws IOException, IWProtocolException {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a cookie");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IWProtocolException)
+                throw (IWProtocolException) cause;
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /*
+     * Client: keep the cookie valid in the background instead of fetching it on the send path
+     * Switches to the async mode: the receiver reads the socket, so renewals are answered while the
+     * application is idle, and send()/receive() wait for their response through it.
+     * Requests a cookie right away; afterwards every cookie whose lifetime the server announced is
+     * renewed after 3/4 of it, retried until a new cookie arrives or the old one expires.
+     * Only if the cookie expired anyway the next command waits for a new one.
+     * The future completes once the first cookie was received.
+     */
+    public CompletableFuture<Void> startCookieRenewal() {
+        this.cookieRenewal = true;
+        if (this.asyncStarted.compareAndSet(false, true))
+            receiveResponseAsync();
+        return cookieAsync(true);
+    }
+
+    // Client: the cookie is missing or expired -> must be requested before sending
+    private boolean needsCookie() {
+        long expiresAt = this.cookieExpiresAt;
+        return this.cookie < 0 || expiresAt != 0 && System.currentTimeMillis() >= expiresAt;
     }
 
-    public long getTimeOfCreation() {
-        return timeOfCreation;
+    /*
+     * requestedAt: when the request was first sent -> the server issued the cookie later,
+     * so the lifetime counted from then never outlasts the cookie on the server
+     */
+    private void acceptCookie(CPCookieResponseMsg res, long requestedAt) {
+        if (!res.getSuccess())
+            return;
+        long lifetime = res.getLifetime();
+        long expiresAt = lifetime > 0 ? requestedAt + lifetime : 0;
+        this.cookie = res.getCookie();
+        this.cookieExpiresAt = expiresAt;
+        if (this.cookieRenewal && lifetime > 0) {
+            long delay = Math.max(0, requestedAt + lifetime * 3 / 4 - System.currentTimeMillis());
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> renewCookie(expiresAt));
+        }
+    }
+
+    // expiresAt: of the cookie to renew, nothing to do once a newer one arrived
+    private void renewCookie(long expiresAt) {
+        if (this.cookieExpiresAt != expiresAt)
+            return;
+        // a new cookie schedules its own renewal
+        cookieAsync(true).whenComplete((v, e) -> {
+            if (e == null)
+                return;
+            long left = expiresAt - System.currentTimeMillis();
+            System.out.println("[CPProtocol] Cookie renewal failed: " + e.getMessage());
+            if (this.cookieExpiresAt == expiresAt && left > 0)
+                CompletableFuture.delayedExecutor(Math.min(CP_TIMEOUT, left), TimeUnit.MILLISECONDS)
+                        .execute(() -> renewCookie(expiresAt));
+        });
     }
+}
+
+// A command sent in pipelined mode that waits for its response
+class PendingCommand {
+    final CPCommandMsg msg;
+    final CompletableFuture<CPCommandResponseMsg> future;
+    // number of transmissions so far
+    volatile int attempts;
+    // System.nanoTime() of the first and the latest transmission
+    volatile long firstSentAt;
+    volatile long sentAt;
+    // holds a window slot, guarded by the window queue
+    boolean admitted;
 
-    public int getCookieValue() {
-        return cookieValue;
+    PendingCommand(CPCommandMsg msg, CompletableFuture<CPCommandResponseMsg> future) {
+        this.msg = msg;
+        this.future = future;
     }
 }
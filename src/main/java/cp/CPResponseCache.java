@@ -0,0 +1,178 @@
+package cp;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import core.Ascii;
+import phy.PhyConfiguration;
+
+/*
+ * Recently sent command responses of a command server, keyed by (client, command id)
+ * A client retransmits a command with the same id when the response got lost. Such a duplicate is
+ * answered with the encoded response from this cache: lookup() only scans the raw datagram for the
+ * id and the CRC field, the command is neither parsed nor validated nor executed again.
+ * A hit also requires the CRC field of the command to match -> a client reusing ids after a restart
+ * gets its new command executed. Entries are dropped after window ms or when capacity is exceeded
+ * (least recently used first).
+ */
+public class CPResponseCache {
+    private final int capacity;
+    private final long window;
+    // guarded by this
+    private final LinkedHashMap<Key, CachedResponse> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static final class Key {
+        final PhyConfiguration peer;
+        final int id;
+
+        Key(PhyConfiguration peer, int id) {
+            this.peer = peer;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return this.id == k.id && this.peer.equals(k.peer);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.peer.hashCode() * 31 + this.id;
+        }
+    }
+
+    // encoded response, sent as is
+    static final class CachedResponse extends CPMsg {
+        final CPChecksum checksum;
+        // CRC of the command
+        final long crc;
+        final long storedAt;
+
+        CachedResponse(byte[] encoded, CPChecksum checksum, long crc, long storedAt) {
+            this.dataBytes = encoded;
+            this.checksum = checksum;
+            this.crc = crc;
+            this.storedAt = storedAt;
+        }
+    }
+
+    /*
+     * capacity: responses kept at most
+     * window: ms a response is kept -> should exceed the time a client keeps retransmitting
+     */
+    public CPResponseCache(int capacity, long window) {
+        if (capacity < 1 || window < 1)
+            throw new IllegalArgumentException("capacity and window must be >= 1");
+        this.capacity = capacity;
+        this.window = window;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedResponse> eldest) {
+                return size() > CPResponseCache.this.capacity;
+            }
+        };
+    }
+
+    /*
+     * Cached response for the command in buf[from, to) (a CP sentence "cp command id ... crc") from peer
+     * returns null for other messages, unknown commands and expired entries
+     */
+    CPMsg lookup(PhyConfiguration peer, byte[] buf, int from, int to) {
+        return lookup(peer, buf, from, to, System.currentTimeMillis());
+    }
+
+    CPMsg lookup(PhyConfiguration peer, byte[] buf, int from, int to, long now) {
+        // "cp" "command" id, fields separated by whitespace
+        int end = Ascii.skipToken(buf, from, to);
+        if (!CPMsg.isName(buf, from, end, CPMsg.CP_HEADER_NAME))
+            return null;
+        int start = Ascii.skipWhitespace(buf, end, to);
+        end = Ascii.skipToken(buf, start, to);
+        if (!CPMsg.isName(buf, start, end, CPMsg.CP_CMD_NAME))
+            return null;
+        start = Ascii.skipWhitespace(buf, end, to);
+        end = Ascii.skipToken(buf, start, to);
+        int id;
+        long crc;
+        CPChecksum checksum;
+        try {
+            id = Ascii.parseInt(buf, start, end);
+            // CRC field: last token
+            int crcEnd = to;
+            while (crcEnd > end && Ascii.isWhitespace(buf[crcEnd - 1]))
+                crcEnd--;
+            int crcStart = crcEnd;
+            while (crcStart > end && !Ascii.isWhitespace(buf[crcStart - 1]))
+                crcStart--;
+            checksum = CPMsg.checksumOf(buf, crcStart, crcEnd);
+            crc = Ascii.parseLong(buf, crcStart + checksum.flagLength(), crcEnd);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        CachedResponse r;
+        Key key = new Key(peer, id);
+        synchronized (this) {
+            r = this.entries.get(key);
+            if (r != null && now - r.storedAt >= this.window) {
+                this.entries.remove(key);
+                r = null;
+            }
+        }
+        if (r == null || r.crc != crc || r.checksum != checksum) {
+            this.misses.increment();
+            return null;
+        }
+        this.hits.increment();
+        return r;
+    }
+
+    /*
+     * Encode the response to the command once and keep it -> returns the message to send
+     */
+    CPMsg put(CPCommandMsg command, CPCommandResponseMsg response) {
+        return put((PhyConfiguration) command.getConfiguration(), command, response);
+    }
+
+    // commands of a batch frame carry no configuration of their own
+    CPMsg put(PhyConfiguration peer, CPCommandMsg command, CPCommandResponseMsg response) {
+        ByteBuffer out = ByteBuffer.allocate(response.getEncodedLength());
+        response.encode(out);
+        CachedResponse r = new CachedResponse(out.array(), command.getChecksum(), command.getCrc32(),
+                System.currentTimeMillis());
+        Key key = new Key(peer, command.getId());
+        synchronized (this) {
+            this.entries.put(key, r);
+        }
+        return r;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    // Validity of a cached response in ms
+    public long getWindow() {
+        return this.window;
+    }
+
+    // Duplicates answered from the cache
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    // Commands looked up without a matching response
+    public long getMisses() {
+        return this.misses.sum();
+    }
+}
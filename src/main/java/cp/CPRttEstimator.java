@@ -0,0 +1,82 @@
+package cp;
+
+/*
+ * Round trip time estimator of one peer (smoothed RTT and RTT variance as in RFC 6298)
+ * RTO = SRTT + 4 * RTTVAR, bounded to [minRto, maxRto]; backoff() doubles the RTO after a timeout
+ * until the next sample is taken. Samples of retransmitted requests must not be fed in (Karn).
+ */
+public class CPRttEstimator {
+    private final long minRto;
+    private final long maxRto;
+    // nanoseconds
+    private long srtt;
+    private long rttvar;
+    private long samples;
+    // milliseconds
+    private long rto;
+    // System.nanoTime() of the latest backoff, valid if backedOff
+    private long backedOffAt;
+    private boolean backedOff;
+
+    public CPRttEstimator(long initialRto, long minRto, long maxRto) {
+        this.minRto = minRto;
+        this.maxRto = maxRto;
+        this.rto = initialRto;
+    }
+
+    /*
+     * Take a measured round trip time in nanoseconds
+     */
+    public synchronized void sample(long rtt) {
+        if (this.samples == 0) {
+            this.srtt = rtt;
+            this.rttvar = rtt / 2;
+        } else {
+            // RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, SRTT = 7/8 SRTT + 1/8 R
+            this.rttvar += (Math.abs(this.srtt - rtt) - this.rttvar) / 4;
+            this.srtt += (rtt - this.srtt) / 8;
+        }
+        this.samples++;
+        long ms = (this.srtt + 4 * this.rttvar + 999_999L) / 1_000_000L;
+        this.rto = Math.max(this.minRto, Math.min(this.maxRto, ms));
+    }
+
+    /*
+     * A request timed out -> wait twice as long for the next one
+     */
+    public synchronized void backoff() {
+        this.rto = Math.min(this.maxRto, this.rto * 2);
+        this.backedOff = true;
+        this.backedOffAt = System.nanoTime();
+    }
+
+    /*
+     * A request sent at sentAt (System.nanoTime()) timed out -> back off once per timeout episode
+     * Requests sent before the latest backoff timed out with the old RTO, doubling again for each of them
+     * would pin the RTO at its upper bound after a single lost window or batch frame.
+     */
+    public synchronized void backoff(long sentAt) {
+        if (this.backedOff && this.backedOffAt - sentAt >= 0)
+            return;
+        backoff();
+    }
+
+    // Current retransmission timeout in milliseconds
+    public synchronized long getRto() {
+        return this.rto;
+    }
+
+    // Smoothed round trip time in nanoseconds, 0 before the first sample
+    public synchronized long getSrtt() {
+        return this.srtt;
+    }
+
+    // Round trip time variance in nanoseconds, 0 before the first sample
+    public synchronized long getRttVar() {
+        return this.rttvar;
+    }
+
+    public synchronized long getSamples() {
+        return this.samples;
+    }
+}
@@ -0,0 +1,177 @@
+package cp;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import core.Msg;
+import phy.PhyConfiguration;
+import phy.PhyMsgBatch;
+import phy.PhyProtocol;
+
+/*
+ * Cookie server running on several threads behind one socket
+ * One I/O thread reads the socket and hands every request to the shard of its client, selected by a
+ * hash of the client's address and port. Each shard has its own queue, worker thread and cookie table
+ * -> a client always ends up at the same table, and the workers never contend for one.
+ * Responses are sent through the asynchronous send queue of the phy layer (enabled if needed),
+ * so the workers do not share the send buffer either.
+ * Requests arriving while the queue of their shard is full are dropped, the client retries.
+ */
+public class CPShardedCookieServer {
+    // requests buffered per shard
+    private static final int CP_SHARD_QUEUE = 1024;
+    // responses waiting for the writer thread
+    private static final int CP_SHARD_SEND_QUEUE = 4096;
+    // requests read from the socket per wakeup
+    private static final int CP_SHARD_BATCH = 32;
+    // the I/O thread checks for close() at least this often (ms)
+    private static final int CP_SHARD_POLL = 200;
+    private final PhyProtocol phy;
+    private final CPProtocol[] shards;
+    private final BlockingQueue<Msg>[] queues;
+    private final Thread[] workers;
+    private Thread reader;
+    private volatile boolean running;
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+
+    /*
+     * shards: number of worker threads
+     * capacity, lifetime: of the cookie table, split evenly between the shards
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public CPShardedCookieServer(PhyProtocol phy, int shards, int capacity, long lifetime) {
+        if (shards < 1)
+            throw new IllegalArgumentException("shards must be >= 1");
+        this.phy = phy;
+        this.shards = new CPProtocol[shards];
+        this.queues = new BlockingQueue[shards];
+        this.workers = new Thread[shards];
+        int perShard = Math.max(1, (capacity + shards - 1) / shards);
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new CPProtocol(phy, true);
+            this.shards[i].setCookieTable(new CPCookieTable(perShard, lifetime, true));
+            this.queues[i] = new ArrayBlockingQueue<>(CP_SHARD_QUEUE);
+        }
+    }
+
+    /*
+     * Issue stateless cookies on all shards instead of storing them, see CPCookieMac
+     */
+    public void setStatelessCookies(CPCookieMac mac) {
+        for (CPProtocol shard : this.shards)
+            shard.setStatelessCookies(mac);
+    }
+
+    /*
+     * Start the I/O thread and the workers
+     */
+    public synchronized void start() throws InterruptedException {
+        if (this.running)
+            return;
+        if (this.phy.getSendQueue() == null)
+            this.phy.setAsyncSend(CP_SHARD_SEND_QUEUE);
+        this.running = true;
+        for (int i = 0; i < this.workers.length; i++) {
+            final int shard = i;
+            this.workers[i] = new Thread(() -> work(shard), "cp-cookie-" + i);
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
+        }
+        this.reader = new Thread(this::read, "cp-cookie-io");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /*
+     * Stop all threads, requests still queued are discarded
+     */
+    public synchronized void close() throws InterruptedException {
+        if (!this.running)
+            return;
+        this.running = false;
+        this.reader.join();
+        for (Thread t : this.workers) {
+            t.interrupt();
+            t.join();
+        }
+        for (BlockingQueue<Msg> q : this.queues)
+            q.clear();
+    }
+
+    // Shard serving the client
+    public int shardOf(PhyConfiguration peer) {
+        int h = peer.hashCode();
+        return ((h ^ (h >>> 16)) & 0x7FFFFFFF) % this.shards.length;
+    }
+
+    // Cookie table of a shard
+    public CPCookieTable getCookieTable(int shard) {
+        return this.shards[shard].getCookieTable();
+    }
+
+    public int getShards() {
+        return this.shards.length;
+    }
+
+    // Requests waiting in the queue of a shard
+    public int getDepth(int shard) {
+        return this.queues[shard].size();
+    }
+
+    // Messages read from the socket
+    public long getReceived() {
+        return this.received.sum();
+    }
+
+    // Messages discarded because the queue of their shard was full
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    // Messages handled by the workers
+    public long getProcessed() {
+        return this.processed.sum();
+    }
+
+    private void read() {
+        while (this.running) {
+            PhyMsgBatch in;
+            try {
+                in = this.phy.receiveBatch(CP_SHARD_BATCH, CP_SHARD_POLL);
+            } catch (IOException e) {
+                System.out.println("[CPShardedCookieServer] Receive failed: " + e.getMessage());
+                return;
+            }
+            for (int i = 0; i < in.size(); i++) {
+                Msg m = in.get(i);
+                this.received.increment();
+                if (!this.queues[shardOf((PhyConfiguration) m.getConfiguration())].offer(m)) {
+                    this.dropped.increment();
+                    m.release();
+                }
+            }
+        }
+    }
+
+    private void work(int shard) {
+        BlockingQueue<Msg> q = this.queues[shard];
+        CPProtocol cp = this.shards[shard];
+        while (this.running) {
+            Msg m;
+            try {
+                m = q.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            // answers the request, returns the parsed message or null
+            Msg cpm = cp.process(m);
+            if (cpm != null)
+                cpm.release();
+            this.processed.increment();
+        }
+    }
+}
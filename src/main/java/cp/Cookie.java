@@ -0,0 +1,22 @@
+package cp;
+
+/*
+ * Cookie issued to one client, see CPCookieTable
+ */
+public class Cookie {
+    private final long timeOfCreation;
+    private final int cookieValue;
+
+    public Cookie(long toc, int c) {
+        this.timeOfCreation = toc;
+        this.cookieValue = c;
+    }
+
+    public long getTimeOfCreation() {
+        return timeOfCreation;
+    }
+
+    public int getCookieValue() {
+        return cookieValue;
+    }
+}
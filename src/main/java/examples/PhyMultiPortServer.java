@@ -0,0 +1,44 @@
+package examples;
+
+import java.io.IOException;
+
+import core.Msg;
+import phy.PhyChannelProtocol;
+import phy.PhyConfiguration;
+import phy.PhyEventLoopGroup;
+
+/*
+ * Server listening on a range of UDP ports with a fixed number of threads
+ * All endpoints are multiplexed by a PhyEventLoopGroup -> no thread per port
+ */
+public class PhyMultiPortServer {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Provide first UDP port, number of ports and optionally number of threads");
+			return;
+		}
+		int firstPort = Integer.parseInt(args[0]);
+		int ports = Integer.parseInt(args[1]);
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+		PhyEventLoopGroup loops = new PhyEventLoopGroup(threads);
+		for (int i = 0; i < ports; i++) {
+			final int port = firstPort + i;
+			PhyChannelProtocol endpoint = new PhyChannelProtocol(port);
+			loops.register(endpoint, (PhyChannelProtocol ep, Msg msg) -> {
+				PhyConfiguration from = (PhyConfiguration) msg.getConfiguration();
+				System.out.println("Port " + port + " received from " + from.getRemotePort() + ": " + msg.getData());
+			});
+		}
+		System.out.println("Listening on ports " + firstPort + " - " + (firstPort + ports - 1)
+				+ " with " + threads + " thread(s)");
+
+		// loop threads are daemons -> keep the application alive
+		try {
+			Thread.currentThread().join();
+		} catch (InterruptedException e) {
+			loops.close();
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package phy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import core.*;
+import exceptions.IWProtocolException;
+
+/*
+ * PhyProtocol on top of a non-blocking DatagramChannel
+ * Datagrams are received into and sent from direct buffers that are allocated once per instance and
+ * hold the largest UDP payload, so no datagram is truncated. Per received datagram the bytes are still
+ * copied once into a heap array for the parser and into the message, which is a new object unless
+ * pooling is enabled (setPooling). Send/receive semantics are identical to PhyProtocol.
+ */
+public class PhyChannelProtocol extends PhyProtocol {
+	protected DatagramChannel channel;
+	// private selector used to block in receive() without a blocking socket
+	private Selector selector;
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(PHY_MAX_DATAGRAM);
+	private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(PHY_MAX_DATAGRAM);
+	// heap copy of the last datagram handed to the parser
+	private final byte[] receiveBytes = new byte[PHY_MAX_DATAGRAM];
+	private InetSocketAddress source;
+
+	/*
+	 * Create a new PhyChannelProtocol instance bound to the UDP port provided
+	 */
+	public PhyChannelProtocol(int port) {
+		super();
+		try {
+			this.channel = DatagramChannel.open();
+			this.channel.bind(new InetSocketAddress(port));
+			this.channel.configureBlocking(false);
+			this.selector = Selector.open();
+			this.channel.register(this.selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public DatagramChannel getChannel() {
+		return this.channel;
+	}
+
+	/*
+	 * Copy the message into the send buffer and hand it to the channel
+	 * The send buffer is shared, so concurrent senders are serialized here
+	 */
+	@Override
+	protected void transmit(PhyMsg m) throws IOException {
+		InetSocketAddress target = ((PhyConfiguration) m.getConfiguration()).getRemoteSocketAddress();
+		if (m.getLength() > this.sendBuffer.capacity())
+			throw new IOException("Message too long");
+		synchronized (this.sendBuffer) {
+			this.sendBuffer.clear();
+			this.sendBuffer.put(m.getDataBytes(), 0, m.getLength());
+			this.sendBuffer.flip();
+			this.channel.send(this.sendBuffer, target);
+		}
+	}
+
+	/*
+	 * The message is written straight into the direct send buffer -> one copy of the payload,
+	 * however many layers contributed a header. A gathering write(ByteBuffer[]) would avoid that copy,
+	 * but DatagramChannel only supports it on a connected channel, which could not reach other peers.
+	 */
+	@Override
+	protected void transmit(Msg upper, PhyConfiguration config) throws IOException {
+		synchronized (this.sendBuffer) {
+			encode(this.sendBuffer, upper, config);
+			this.sendBuffer.flip();
+			this.channel.send(this.sendBuffer, config.getRemoteSocketAddress());
+		}
+	}
+
+	/*
+	 * receive incoming message from channel and parse -> call blocks until message is received
+	 * return Msg object to caller (null if the message was illegal)
+	 */
+	@Override
+	public Msg receive() throws IOException {
+		while (!readDatagram()) {
+			this.selector.select();
+			this.selector.selectedKeys().clear();
+		}
+		return deliverDatagram();
+	}
+
+	/*
+	 * call blocks until message is received or timeout expires and exception is raised
+	 * a timeout of zero is interpreted as an infinite timeout (same as SO_TIMEOUT)
+	 */
+	@Override
+	public Msg receive(int timeout) throws IOException {
+		if (timeout == 0)
+			return receive();
+		long deadline = System.nanoTime() + timeout * 1_000_000L;
+		while (!readDatagram()) {
+			int remaining = remainingMillis(deadline);
+			if (remaining <= 0)
+				throw new SocketTimeoutException();
+			this.selector.select(remaining);
+			this.selector.selectedKeys().clear();
+		}
+		return deliverDatagram();
+	}
+
+	/*
+	 * Wait on the selector for at most the time left until deadline -> no socket option is touched
+	 * Illegal datagrams are dropped and the wait continues with the remaining time
+	 */
+	@Override
+	public Msg receiveUntil(long deadline) throws IOException {
+		while (true) {
+			if (readDatagram()) {
+				Msg in = deliverDatagram();
+				if (in != null)
+					return in;
+				continue;
+			}
+			int remaining = remainingMillis(deadline);
+			if (remaining <= 0)
+				throw new SocketTimeoutException();
+			this.selector.select(remaining);
+			this.selector.selectedKeys().clear();
+		}
+	}
+
+	/*
+	 * Wait at most timeout ms (0 = no limit) for the first datagram, then drain everything
+	 * that is already queued on the channel without blocking until it is empty or max is reached
+	 */
+	@Override
+	public PhyMsgBatch receiveBatch(int max, int timeout) throws IOException {
+		this.batch.reset(max);
+		long deadline = System.nanoTime() + timeout * 1_000_000L;
+		while (!readDatagram()) {
+			int remaining = remainingMillis(deadline);
+			if (timeout == 0) {
+				this.selector.select();
+			} else if (remaining <= 0) {
+				return this.batch;
+			} else {
+				this.selector.select(remaining);
+			}
+			this.selector.selectedKeys().clear();
+		}
+		do {
+			Msg in = deliverDatagram();
+			if (in != null)
+				this.batch.add(in);
+		} while (this.batch.size() < max && readDatagram());
+		return this.batch;
+	}
+
+	/*
+	 * Non-blocking: hand every queued datagram (at most max) to the handler
+	 * Illegal messages are dropped; returns the number of datagrams read from the channel
+	 */
+	public int poll(PhyHandler handler, int max) throws IOException {
+		int count = 0;
+		while (count < max && readDatagram()) {
+			count++;
+			Msg in = deliverDatagram();
+			if (in == null)
+				continue;
+			try {
+				handler.handle(this, in);
+			} catch (IWProtocolException e) {
+				System.out.println("[PhyChannelProtocol.poll] Handler rejected message: " + in.getData());
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * receiveAsync() is served by the shared I/O event loop -> no thread per endpoint
+	 */
+	@Override
+	protected void startAsyncReceive() throws IOException {
+		PhyEventLoop.shared().register(this, (endpoint, msg) -> deliverAsync(msg));
+	}
+
+	/*
+	 * Sends still queued for the writer thread are completed before the channel is closed
+	 * Futures still waiting in receiveAsync() fail with AsynchronousCloseException
+	 */
+	public void close() throws IOException {
+		try {
+			setAsyncSend(0);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.selector.close();
+		this.channel.close();
+		failAsyncReceivers(new AsynchronousCloseException());
+	}
+
+	/*
+	 * Non-blocking read of one datagram into the receive buffer
+	 * returns false if no datagram is queued on the channel
+	 */
+	private boolean readDatagram() throws IOException {
+		this.receiveBuffer.clear();
+		this.source = (InetSocketAddress) this.channel.receive(this.receiveBuffer);
+		return this.source != null;
+	}
+
+	private Msg deliverDatagram() throws IOException {
+		this.receiveBuffer.flip();
+		int length = this.receiveBuffer.remaining();
+		this.receiveBuffer.get(this.receiveBytes, 0, length);
+		return deliver(this.receiveBytes, length, this.source.getAddress(), this.source.getPort());
+	}
+}
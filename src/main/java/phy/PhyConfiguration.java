@@ -1,6 +1,7 @@
 package phy;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.Objects;
 
@@ -12,6 +13,7 @@ public class PhyConfiguration extends Configuration{
 	protected InetAddress remoteIPAddress;
 	protected Protocol.proto_id pid;
 	protected boolean isClient;
+	private InetSocketAddress remoteSocketAddress;
 	
 	public PhyConfiguration(InetAddress rip, int rp, Protocol.proto_id pid) throws UnknownHostException {
 		super(null);
@@ -30,6 +32,15 @@ public class PhyConfiguration extends Configuration{
 	}
 	public Protocol.proto_id getPid() {return this.pid;}
 
+	/*
+	 * Socket address of the peer, created once and reused for every send
+	 */
+	public InetSocketAddress getRemoteSocketAddress() {
+		if (this.remoteSocketAddress == null)
+			this.remoteSocketAddress = new InetSocketAddress(this.remoteIPAddress, this.remotePort);
+		return this.remoteSocketAddress;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) {
@@ -44,8 +55,11 @@ public class PhyConfiguration extends Configuration{
 				(this.remotePort == phyConf.getRemotePort()));
 	}
 
+	/*
+	 * Same value as Objects.hash(remoteIPAddress, remotePort) without the varargs array
+	 */
 	@Override
 	public int hashCode() {
-		return Objects.hash(this.remoteIPAddress, this.remotePort);
+		return (31 + Objects.hashCode(this.remoteIPAddress)) * 31 + this.remotePort;
 	}
 }
@@ -0,0 +1,69 @@
+package phy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import core.Msg;
+import core.Protocol;
+
+/*
+ * Routes received messages to one bounded queue per protocol id
+ * Several upper layer instances can share one PhyProtocol: whichever of them currently reads
+ * the socket (the leader) hands messages for the other protocol ids to their queues instead of
+ * discarding them. Messages for protocol ids without a queue, or arriving while the queue is full,
+ * are released and counted as dropped.
+ * Only PhyProtocol.receive(proto_id, ...) goes through the demultiplexer. The other receive methods
+ * (receive(), receiveBatch(), receiveAsync(), the event loop) return whatever they read and bypass it,
+ * so sharing is only safe if every layer on the PhyProtocol receives by protocol id. In this stack only
+ * the synchronous CP client does; its async mode and the CP server roles read everything and need a
+ * PhyProtocol of their own.
+ */
+public class PhyDemux {
+	private final BlockingQueue<Msg>[] queues;
+	private final LongAdder[] dropped;
+	// held by the thread currently reading the socket
+	final ReentrantLock reader = new ReentrantLock();
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	PhyDemux() {
+		int n = Protocol.proto_id.values().length;
+		this.queues = new BlockingQueue[n];
+		this.dropped = new LongAdder[n];
+		for (int i = 0; i < n; i++)
+			this.dropped[i] = new LongAdder();
+	}
+
+	synchronized void register(Protocol.proto_id pid, int capacity) {
+		if (this.queues[pid.ordinal()] == null)
+			this.queues[pid.ordinal()] = new ArrayBlockingQueue<>(capacity);
+	}
+
+	BlockingQueue<Msg> queue(Protocol.proto_id pid) {
+		return this.queues[pid.ordinal()];
+	}
+
+	/*
+	 * Hand a message to the queue of its protocol id
+	 */
+	void route(Msg m) {
+		Protocol.proto_id pid = ((PhyConfiguration) m.getConfiguration()).getPid();
+		BlockingQueue<Msg> q = this.queues[pid.ordinal()];
+		if (q == null || !q.offer(m)) {
+			this.dropped[pid.ordinal()].increment();
+			m.release();
+		}
+	}
+
+	// Messages waiting in the queue of pid, 0 if there is none
+	public int getDepth(Protocol.proto_id pid) {
+		BlockingQueue<Msg> q = this.queues[pid.ordinal()];
+		return q == null ? 0 : q.size();
+	}
+
+	// Messages for pid that were discarded because there was no queue or it was full
+	public long getDropped(Protocol.proto_id pid) {
+		return this.dropped[pid.ordinal()].sum();
+	}
+}
@@ -0,0 +1,129 @@
+package phy;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Single-threaded event loop that multiplexes many PhyChannelProtocol endpoints
+ * Readable endpoints are drained without blocking and every message is passed to the
+ * handler registered for that endpoint -> no thread per socket is needed.
+ * Endpoints registered here must not be read by any other thread.
+ */
+public class PhyEventLoop implements Runnable {
+	// upper bound of datagrams read from one endpoint before the next endpoint is served
+	private static final int PHY_LOOP_BUDGET = 64;
+	private final Selector selector;
+	// registrations are handed over to the loop thread, Selector.register would block during select()
+	private final ConcurrentLinkedQueue<Registration> pending = new ConcurrentLinkedQueue<>();
+	private volatile boolean running = true;
+	private Thread thread;
+	// loop shared by all endpoints that use PhyProtocol.receiveAsync()
+	private static PhyEventLoop shared;
+
+	private static class Registration {
+		final PhyChannelProtocol endpoint;
+		final PhyHandler handler;
+
+		Registration(PhyChannelProtocol endpoint, PhyHandler handler) {
+			this.endpoint = endpoint;
+			this.handler = handler;
+		}
+	}
+
+	public PhyEventLoop() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	/*
+	 * The process wide I/O loop, started on first use
+	 */
+	public static synchronized PhyEventLoop shared() throws IOException {
+		if (shared == null) {
+			shared = new PhyEventLoop();
+			shared.start("phy-io");
+		}
+		return shared;
+	}
+
+	/*
+	 * Register an endpoint -> all messages received on it are passed to handler
+	 * May be called from any thread, also while the loop is running
+	 */
+	public void register(PhyChannelProtocol endpoint, PhyHandler handler) {
+		this.pending.add(new Registration(endpoint, handler));
+		this.selector.wakeup();
+	}
+
+	/*
+	 * Run the loop on a new thread
+	 */
+	public synchronized void start(String name) {
+		if (this.thread != null)
+			return;
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/*
+	 * Stop the loop; registered endpoints stay open
+	 */
+	public void close() throws IOException {
+		this.running = false;
+		this.selector.wakeup();
+		if (this.thread != null && this.thread != Thread.currentThread()) {
+			try {
+				this.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.selector.close();
+	}
+
+	@Override
+	public void run() {
+		while (this.running) {
+			try {
+				this.selector.select();
+				registerPending();
+				Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					dispatch(key);
+				}
+			} catch (IOException e) {
+				if (this.running)
+					e.printStackTrace();
+			}
+		}
+	}
+
+	private void registerPending() {
+		Registration r;
+		while ((r = this.pending.poll()) != null) {
+			try {
+				r.endpoint.getChannel().register(this.selector, SelectionKey.OP_READ, r);
+			} catch (ClosedChannelException e) {
+				System.out.println("[PhyEventLoop] Endpoint closed before registration");
+			}
+		}
+	}
+
+	private void dispatch(SelectionKey key) {
+		Registration r = (Registration) key.attachment();
+		try {
+			r.endpoint.poll(r.handler, PHY_LOOP_BUDGET);
+		} catch (IOException e) {
+			// a failing endpoint must not stop the others
+			System.out.println("[PhyEventLoop] I/O error on endpoint: " + e.getMessage());
+			if (!r.endpoint.getChannel().isOpen())
+				key.cancel();
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package phy;
+
+import java.io.IOException;
+
+/*
+ * N event loops, each on its own thread
+ * Endpoints are assigned round robin, every endpoint is served by exactly one loop.
+ */
+public class PhyEventLoopGroup {
+	private final PhyEventLoop[] loops;
+	private int next;
+
+	public PhyEventLoopGroup(int threads) throws IOException {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be >= 1");
+		this.loops = new PhyEventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			this.loops[i] = new PhyEventLoop();
+			this.loops[i].start("phy-loop-" + i);
+		}
+	}
+
+	public synchronized void register(PhyChannelProtocol endpoint, PhyHandler handler) {
+		this.loops[this.next].register(endpoint, handler);
+		this.next = (this.next + 1) % this.loops.length;
+	}
+
+	public void close() throws IOException {
+		for (PhyEventLoop loop : this.loops)
+			loop.close();
+	}
+}
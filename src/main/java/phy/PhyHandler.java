@@ -0,0 +1,15 @@
+package phy;
+
+import java.io.IOException;
+
+import core.Msg;
+import exceptions.IWProtocolException;
+
+/*
+ * Callback for messages dispatched by a PhyEventLoop
+ * Runs on the event loop thread -> must not block
+ */
+@FunctionalInterface
+public interface PhyHandler {
+	void handle(PhyChannelProtocol endpoint, Msg msg) throws IOException, IWProtocolException;
+}
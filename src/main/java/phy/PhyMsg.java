@@ -1,6 +1,11 @@
 package phy;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import core.Ascii;
 import core.Msg;
+import core.MsgPool;
 import core.Protocol;
 import exceptions.IllegalMsgException;
 
@@ -11,7 +16,27 @@ import exceptions.IllegalMsgException;
  */
 public class PhyMsg extends Msg {
 	protected static final String PHY_HEADER = "phy";
+	protected static final byte[] PHY_HEADER_BYTES = PHY_HEADER.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[][] PHY_HEADERS = new byte[Protocol.proto_id.values().length][];
+	static {
+		for (Protocol.proto_id p : Protocol.proto_id.values()) {
+			int id = switch (p) {
+				case PHY -> 1;
+				case APP -> 3;
+				case SLP -> 5;
+				case CP -> 7;
+			};
+			PHY_HEADERS[p.ordinal()] = (PHY_HEADER + " " + id + " ").getBytes(StandardCharsets.US_ASCII);
+		}
+	}
 	protected Protocol.proto_id pid;
+	// received bytes (trimmed sentence) -> may be larger than length if the message is pooled
+	protected byte[] buffer;
+	protected int length;
+	protected int payloadOffset;
+	protected int payloadLength;
+	// pool for ping messages replacing this message in parse(), only set for pooled messages
+	MsgPool<PhyPingMsg> pingPool;
 
 	protected PhyMsg() {}
 	protected PhyMsg(PhyConfiguration config) {
@@ -27,16 +52,17 @@ public class PhyMsg extends Msg {
 	@Override
 	protected void create(String data) {
 		this.data = data;
-		int id;
-		PhyConfiguration conf = (PhyConfiguration) this.config;
-		id = switch (conf.getPid()) {
-			case PHY -> 1;
-			case APP -> 3;
-			case SLP -> 5;
-			case CP -> 7;
-		};
-		data = PHY_HEADER + " " + id + " " +data;
-		this.dataBytes = data.getBytes();
+		byte[] header = headerFor(((PhyConfiguration) this.config).getPid());
+		byte[] payload = data.getBytes(StandardCharsets.UTF_8);
+		this.dataBytes = Arrays.copyOf(header, header.length + payload.length);
+		System.arraycopy(payload, 0, this.dataBytes, header.length, payload.length);
+	}
+
+	/*
+	 * Encoded "phy <id> " header for the protocol id -> built once, never modified
+	 */
+	protected static byte[] headerFor(Protocol.proto_id pid) {
+		return PHY_HEADERS[pid.ordinal()];
 	}
 	
 	/*
@@ -46,17 +72,33 @@ public class PhyMsg extends Msg {
 	 */
 	@Override
 	protected Msg parse(String sentence) throws IllegalMsgException {
-		this.dataBytes = sentence.getBytes();
-		if (!sentence.startsWith(PHY_HEADER)) {
-			System.out.println("Illeagal data header: " + sentence);
+		byte[] b = sentence.getBytes(StandardCharsets.UTF_8);
+		return parse(b, 0, b.length);
+	}
+
+	/*
+	 * Parse "phy <id> <payload>" directly from the received bytes
+	 * Leading and trailing whitespace is ignored (like String.trim()), fields are separated by
+	 * whitespace runs (like split("\\s+")). No intermediate Strings are created, the payload is
+	 * only decoded when getData() is called.
+	 */
+	protected Msg parse(byte[] buf, int offset, int length) throws IllegalMsgException {
+		int from = offset;
+		int to = offset + length;
+		while (from < to && Ascii.isTrimmed(buf[from]))
+			from++;
+		while (to > from && Ascii.isTrimmed(buf[to - 1]))
+			to--;
+		if (!Ascii.startsWith(buf, from, to, PHY_HEADER_BYTES)) {
+			System.out.println("Illeagal data header: " + new String(buf, from, to - from));
 			throw new IllegalMsgException();
 		}
-		String[] parts = sentence.split("\\s+", 3);
-		PhyMsg pdu;
-		// Parse the protocol id
+		// Parse the protocol id (second token)
+		int idStart = Ascii.skipWhitespace(buf, Ascii.skipToken(buf, from, to), to);
+		int idEnd = Ascii.skipToken(buf, idStart, to);
 		int id;
 		try {
-			id = Integer.parseInt(parts[1]);
+			id = Ascii.parseInt(buf, idStart, idEnd);
 		} catch (NumberFormatException e) {
 			throw new IllegalMsgException();
 		}
@@ -68,15 +110,99 @@ public class PhyMsg extends Msg {
 			case 7 -> pid = Protocol.proto_id.CP;
 			default -> throw new IllegalMsgException();
 		}
+		// Message without payload
+		if (idEnd == to)
+			throw new IllegalMsgException();
+		int payloadStart = Ascii.skipWhitespace(buf, idEnd, to);
+
+		copyFrom(buf, from, to);
+		this.payloadOffset = payloadStart - from;
+		this.payloadLength = to - payloadStart;
 		// If the second token is "1", call the PhyPingMsg parser
-		if(pid == Protocol.proto_id.PHY && parts[2].startsWith(PhyPingMsg.PHY_PING_HEADER)) {
-			pdu = new PhyPingMsg((PhyConfiguration) this.config);
-			pdu.parse(parts[2]);
-		} else {
-			this.data = parts[2];
-			pdu = this;
+		if (pid == Protocol.proto_id.PHY && Ascii.startsWith(this.buffer, this.payloadOffset,
+				this.length, PhyPingMsg.PHY_PING_HEADER_BYTES)) {
+			PhyPingMsg pdu = this.pingPool != null ? this.pingPool.acquire() : new PhyPingMsg(null);
+			pdu.config = this.config;
+			pdu.pid = this.pid;
+			try {
+				pdu.parse(this.buffer, this.payloadOffset, this.payloadLength);
+			} catch (IllegalMsgException e) {
+				pdu.release();
+				throw e;
+			}
+			// the ping message replaces this one
+			release();
+			return pdu;
 		}
-		return pdu;
+		return this;
+	}
+
+	/*
+	 * Keep a copy of buf[from, to) -> pooled messages reuse their buffer
+	 */
+	protected void copyFrom(byte[] buf, int from, int to) {
+		int len = to - from;
+		if (!isPooled())
+			this.buffer = new byte[len];
+		else if (this.buffer == null || this.buffer.length < len)
+			this.buffer = new byte[Math.max(len, PhyProtocol.PHY_BUFFER_SIZE)];
+		System.arraycopy(buf, from, this.buffer, 0, len);
+		this.length = len;
+		this.dataBytes = null;
+		this.data = null;
+	}
+
+	/*
+	 * Backing array of a received message, valid range is [0, getLength())
+	 * Allows zero-copy access to the payload view below
+	 */
+	public byte[] getBuffer() {
+		return this.buffer;
+	}
+
+	/*
+	 * The buffer of a pooled message is reused once it is released -> such a message always returns a copy
+	 */
+	@Override
+	public byte[] getDataBytes() {
+		if (this.dataBytes == null && this.buffer != null)
+			this.dataBytes = this.buffer.length == this.length && !isPooled() ? this.buffer : Arrays.copyOf(this.buffer, this.length);
+		return this.dataBytes;
+	}
+
+	@Override
+	public int getLength() {
+		return this.buffer != null ? this.length : super.getLength();
+	}
+
+	/*
+	 * Payload of a received message as a view into getBuffer() / getDataBytes()
+	 */
+	public int getPayloadOffset() {
+		return this.payloadOffset;
+	}
+
+	public int getPayloadLength() {
+		return this.payloadLength;
+	}
+
+	/*
+	 * The payload of received messages is decoded on first access
+	 */
+	@Override
+	public String getData() {
+		if (this.data == null && this.buffer != null)
+			this.data = new String(this.buffer, this.payloadOffset, this.payloadLength, StandardCharsets.UTF_8);
+		return this.data;
+	}
+
+	@Override
+	protected void reset() {
+		super.reset();
+		this.pid = null;
+		this.length = 0;
+		this.payloadOffset = 0;
+		this.payloadLength = 0;
 	}
 	
 }
@@ -0,0 +1,47 @@
+package phy;
+
+import java.util.Arrays;
+
+import core.Msg;
+
+/*
+ * Reusable container for the messages returned by PhyProtocol.receiveBatch()
+ * The container is owned by the protocol instance and cleared on every call,
+ * so its content is only valid until the next receiveBatch() call.
+ */
+public class PhyMsgBatch {
+	private Msg[] msgs;
+	private int size;
+
+	public PhyMsgBatch(int capacity) {
+		this.msgs = new Msg[capacity];
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public Msg get(int i) {
+		if (i >= this.size)
+			throw new IndexOutOfBoundsException(i);
+		return this.msgs[i];
+	}
+
+	/*
+	 * Drop all references and make sure max messages fit without growing
+	 */
+	protected void reset(int max) {
+		Arrays.fill(this.msgs, 0, this.size, null);
+		this.size = 0;
+		if (this.msgs.length < max)
+			this.msgs = new Msg[max];
+	}
+
+	protected void add(Msg m) {
+		this.msgs[this.size++] = m;
+	}
+}
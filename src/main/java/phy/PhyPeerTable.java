@@ -0,0 +1,120 @@
+package phy;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+
+import core.Protocol;
+
+/*
+ * Interns the configuration objects of remote peers
+ * Every (address, port, protocol id) maps to one canonical PhyConfiguration, so repeated packets
+ * from a known peer do not allocate and compare by identity downstream.
+ * IPv4 peers are kept in an open-addressing table keyed by a packed long,
+ * IPv6 peers in a HashMap (needs a key object per lookup).
+ */
+public class PhyPeerTable {
+	private static final int PHY_PEERS_INITIAL = 64;
+	// the table is cleared once it holds this many peers -> bounded memory with many short-lived clients
+	private static final int PHY_PEERS_MAX = 1 << 20;
+	// marks a used slot, packed keys use the lower 51 bits only
+	private static final long USED = 1L << 62;
+	private long[] keys = new long[PHY_PEERS_INITIAL];
+	private PhyConfiguration[] peers = new PhyConfiguration[PHY_PEERS_INITIAL];
+	private int size;
+	private final HashMap<InetSocketAddress, PhyConfiguration[]> peers6 = new HashMap<>();
+
+	/*
+	 * Canonical configuration object for the peer -> created on first contact
+	 */
+	public synchronized PhyConfiguration lookup(InetAddress address, int port, Protocol.proto_id pid)
+			throws UnknownHostException {
+		if (!(address instanceof Inet4Address))
+			return lookup6(address, port, pid);
+
+		// Inet4Address.hashCode() is the address itself
+		long key = USED | ((address.hashCode() & 0xFFFFFFFFL) << 19) | ((long) port << 3) | pid.ordinal();
+		int mask = this.keys.length - 1;
+		int i = mix(key) & mask;
+		while (this.keys[i] != 0) {
+			if (this.keys[i] == key) {
+				PhyConfiguration p = this.peers[i];
+				if (p.remoteIPAddress.equals(address))
+					return p;
+				// same packed key for another address -> replace entry
+				p = new PhyConfiguration(address, port, pid);
+				this.peers[i] = p;
+				return p;
+			}
+			i = (i + 1) & mask;
+		}
+		// new peer
+		PhyConfiguration p = new PhyConfiguration(address, port, pid);
+		if (this.size >= PHY_PEERS_MAX)
+			clear();
+		if (2 * (this.size + 1) > this.keys.length)
+			grow();
+		insert(key, p);
+		this.size++;
+		return p;
+	}
+
+	public synchronized int size() {
+		return this.size + this.peers6.size();
+	}
+
+	public synchronized void clear() {
+		this.keys = new long[PHY_PEERS_INITIAL];
+		this.peers = new PhyConfiguration[PHY_PEERS_INITIAL];
+		this.size = 0;
+		this.peers6.clear();
+	}
+
+	private PhyConfiguration lookup6(InetAddress address, int port, Protocol.proto_id pid)
+			throws UnknownHostException {
+		InetSocketAddress key = new InetSocketAddress(address, port);
+		PhyConfiguration[] byPid = this.peers6.get(key);
+		if (byPid == null) {
+			if (this.peers6.size() >= PHY_PEERS_MAX)
+				this.peers6.clear();
+			byPid = new PhyConfiguration[Protocol.proto_id.values().length];
+			this.peers6.put(key, byPid);
+		}
+		PhyConfiguration p = byPid[pid.ordinal()];
+		if (p == null) {
+			p = new PhyConfiguration(address, port, pid);
+			byPid[pid.ordinal()] = p;
+		}
+		return p;
+	}
+
+	private void grow() {
+		long[] oldKeys = this.keys;
+		PhyConfiguration[] oldPeers = this.peers;
+		this.keys = new long[oldKeys.length * 2];
+		this.peers = new PhyConfiguration[oldKeys.length * 2];
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != 0)
+				insert(oldKeys[j], oldPeers[j]);
+		}
+	}
+
+	private void insert(long key, PhyConfiguration p) {
+		int mask = this.keys.length - 1;
+		int i = mix(key) & mask;
+		while (this.keys[i] != 0)
+			i = (i + 1) & mask;
+		this.keys[i] = key;
+		this.peers[i] = p;
+	}
+
+	// spread the packed key over all bits (murmur3 finalizer)
+	private static int mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+}
@@ -1,10 +1,14 @@
 package phy;
 
+import java.nio.charset.StandardCharsets;
+
+import core.Ascii;
 import core.Msg;
 import exceptions.IllegalMsgException;
 
 public class PhyPingMsg extends PhyMsg {
 	protected static final String PHY_PING_HEADER = "ping ";
+	protected static final byte[] PHY_PING_HEADER_BYTES = PHY_PING_HEADER.getBytes(StandardCharsets.US_ASCII);
 	private int count;
 
 	protected PhyPingMsg(PhyConfiguration config) {
@@ -48,4 +52,37 @@ public class PhyPingMsg extends PhyMsg {
 		return this;
 	}
 
+	/*
+	 * Parse the ping payload in place, buf[offset, offset + length) starts with the ping header
+	 */
+	@Override
+	protected Msg parse(byte[] buf, int offset, int length) throws IllegalMsgException {
+		int to = offset + length;
+		if (!Ascii.startsWith(buf, offset, to, PHY_PING_HEADER_BYTES)) {
+			System.out.println("Illeagal ping header: " + new String(buf, offset, length));
+			throw new IllegalMsgException();
+		}
+		int from = offset + PHY_PING_HEADER_BYTES.length;
+		copyFrom(buf, offset, to);
+		this.payloadOffset = from - offset;
+		this.payloadLength = to - from;
+		// count is the trimmed remainder
+		while (from < to && Ascii.isTrimmed(buf[from]))
+			from++;
+		while (to > from && Ascii.isTrimmed(buf[to - 1]))
+			to--;
+		try {
+			this.count = Ascii.parseInt(buf, from, to);
+		} catch (NumberFormatException e) {
+			throw new IllegalMsgException();
+		}
+		return this;
+	}
+
+	@Override
+	protected void reset() {
+		super.reset();
+		this.count = 0;
+	}
+
 }
@@ -1,15 +1,51 @@
 package phy;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import core.*;
 import exceptions.*;
 
 public class PhyProtocol extends Protocol {
+	protected static final int PHY_BUFFER_SIZE = 1024;
+	// largest UDP payload
+	protected static final int PHY_MAX_DATAGRAM = 65507;
+	// upper bound of idle message objects kept per thread
+	protected static final int PHY_POOL_SIZE = 256;
+	// longest wait of a caller for the current socket reader before it tries to read itself
+	private static final int PHY_DEMUX_SLICE = 10;
+	// received messages kept for later receiveAsync() calls before further ones are dropped
+	private static final int PHY_ASYNC_BACKLOG = 256;
 	protected DatagramSocket socket;
+	protected final PhyMsgBatch batch = new PhyMsgBatch(1);
+	// canonical configuration objects of known peers
+	protected final PhyPeerTable peers = new PhyPeerTable();
+	private MsgPool<PhyMsg> msgPool;
+	private MsgPool<PhyPingMsg> pingPool;
+	// outbound datagram for send(Msg, PhyConfiguration), guarded by sendBuffer
+	private ByteBuffer sendBuffer;
+	private DatagramPacket sendPacket;
+	// SO_TIMEOUT currently set on the socket, guarded by the receiving thread
+	private int soTimeout;
+	// set if sends are handed to a writer thread
+	private volatile PhySendQueue sendQueue;
+	// per protocol id queues for receive(proto_id, int)
+	private final PhyDemux demux = new PhyDemux();
+	// futures of receiveAsync() callers in call order and messages nobody asked for yet, guarded by asyncReceivers
+	private final ArrayDeque<CompletableFuture<Msg>> asyncReceivers = new ArrayDeque<>();
+	private final ArrayDeque<Msg> asyncUnclaimed = new ArrayDeque<>();
+	private boolean asyncStarted;
 	
 	/*
 	 * Create a new PhyProtocol instance connected to UDP port provided
@@ -17,11 +53,18 @@ public class PhyProtocol extends Protocol {
 	public PhyProtocol(int port) {
 		try {
 			this.socket = new DatagramSocket(port);
+			this.sendBuffer = ByteBuffer.allocate(PHY_MAX_DATAGRAM);
+			this.sendPacket = new DatagramPacket(this.sendBuffer.array(), 0);
 		} catch (SocketException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/*
+	 * Used by subclasses that bring their own transport (see PhyChannelProtocol)
+	 */
+	protected PhyProtocol() {}
+
 	/*
 	 * Create msg object and send
 	 */
@@ -36,6 +79,18 @@ public class PhyProtocol extends Protocol {
 	}
 	
 	public void send(PhyMsg m) throws IOException {
+		PhySendQueue q = this.sendQueue;
+		if (q != null) {
+			q.offer(m, null);
+			return;
+		}
+		transmit(m);
+	}
+
+	/*
+	 * Hand a complete message to the socket on the calling thread
+	 */
+	protected void transmit(PhyMsg m) throws IOException {
 		// Create UDP packet
 		DatagramPacket sendPacket = new DatagramPacket(m.getDataBytes(), m.getLength(),
 				((PhyConfiguration) m.getConfiguration()).remoteIPAddress,
@@ -44,51 +99,371 @@ public class PhyProtocol extends Protocol {
 		socket.send(sendPacket);
 	}
 	
+	/*
+	 * Send a message of the next higher layer
+	 * With async send enabled the message is only enqueued -> it must not be changed afterwards.
+	 */
+	public void send(Msg upper, PhyConfiguration config) throws IOException {
+		PhySendQueue q = this.sendQueue;
+		if (q != null) {
+			q.offer(upper, config);
+			return;
+		}
+		transmit(upper, config);
+	}
+
+	/*
+	 * The cached phy header and the upper layer fields are written into one outbound buffer,
+	 * so the payload is copied exactly once.
+	 */
+	protected void transmit(Msg upper, PhyConfiguration config) throws IOException {
+		synchronized (this.sendBuffer) {
+			encode(this.sendBuffer, upper, config);
+			this.sendPacket.setLength(this.sendBuffer.position());
+			this.sendPacket.setSocketAddress(config.getRemoteSocketAddress());
+			socket.send(this.sendPacket);
+		}
+	}
+
+	/*
+	 * Write phy header and upper layer message into out (cleared first)
+	 */
+	protected static void encode(ByteBuffer out, Msg upper, PhyConfiguration config) throws IOException {
+		out.clear();
+		try {
+			out.put(PhyMsg.headerFor(config.getPid()));
+			upper.encode(out);
+		} catch (BufferOverflowException e) {
+			throw new IOException("Message too long");
+		}
+	}
+
 	/*
 	 * receive incoming message from socket and parse -> call blocks on socket until message is received
 	 * return Msg object to caller
 	 */
 	@Override
 	public Msg receive() throws IOException {
+		setTimeout(0);
+		return read();
+	}
+
+	private Msg read() throws IOException {
 		// read from UDP socket
 		// data and meta-data contained in receivedPacket object
-		byte[] receiveData = new byte[1024];
+		byte[] receiveData = new byte[PHY_BUFFER_SIZE];
 		DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
 		socket.receive(receivePacket);
 
+		return deliver(receivePacket.getData(), receivePacket.getLength(),
+				receivePacket.getAddress(), receivePacket.getPort());
+	}
+
+	/*
+	 * Parse the received bytes and attach the sender's configuration
+	 * Shared by all transports -> returns null if the message is not compliant
+	 */
+	protected Msg deliver(byte[] data, int length, InetAddress address, int port) throws IOException {
 		// create msg object for parsing
-		PhyMsg in = new PhyMsg();
-		// get data from packet data - use getLength() to only get actual received bytes
-		String sentence = new String(receivePacket.getData(), 0, receivePacket.getLength()).trim();
+		PhyMsg in = newMsg();
 		try {
 			// parse data to check if message is compliant with protocol specification
-			in = (PhyMsg) in.parse(sentence);
-			// create a config object from packet meta-data
-			PhyConfiguration config = new PhyConfiguration(receivePacket.getAddress(), receivePacket.getPort(), in.getPid());
+			// -> works directly on the received bytes, use length to only get actual received bytes
+			in = (PhyMsg) in.parse(data, 0, length);
+			// look up the config object of the sender -> only created for new peers
+			PhyConfiguration config = this.peers.lookup(address, port, in.getPid());
 			in.setConfiguration(config);
 			// if message was parsed correctly object is returned to caller  
 			return in;
 		} catch (IllegalMsgException e) {
-			System.out.println("[PhyProtocol.receive] Illegal message received: " + sentence);
+			in.release();
+			System.out.println("[PhyProtocol.receive] Illegal message received: " + new String(data, 0, length).trim());
 			e.printStackTrace();
 			// Return null if parsing fails to indicate invalid message
 			return null;
 		}
 	}
 	
+	public PhyPeerTable getPeers() {
+		return this.peers;
+	}
+
+	/*
+	 * Opt-in pooling of received message objects
+	 * If enabled, every message returned by receive() must be handed back with Msg.release()
+	 * once it has been processed. Must be set before receiving starts.
+	 */
+	public void setPooling(boolean enable) {
+		if (enable) {
+			this.msgPool = new MsgPool<>(PhyMsg::new, PHY_POOL_SIZE);
+			this.pingPool = new MsgPool<>(() -> new PhyPingMsg(null), PHY_POOL_SIZE);
+		} else {
+			this.msgPool = null;
+			this.pingPool = null;
+		}
+	}
+
+	/*
+	 * Opt-in asynchronous sending
+	 * capacity > 0: send() only enqueues the message, a writer thread hands it to the socket.
+	 * Messages sent while more than capacity messages are waiting are dropped (see PhySendQueue counters).
+	 * capacity 0: back to sending on the caller's thread -> messages still queued are sent first.
+	 */
+	public synchronized void setAsyncSend(int capacity) throws InterruptedException {
+		PhySendQueue old = this.sendQueue;
+		this.sendQueue = capacity > 0 ? new PhySendQueue(this, capacity) : null;
+		if (old != null)
+			old.close();
+	}
+
+	// queue depth and drop counters, null if async send is disabled
+	public PhySendQueue getSendQueue() {
+		return this.sendQueue;
+	}
+
+	// pool counters for leak detection, null if pooling is disabled
+	public MsgPool<PhyMsg> getMsgPool() {
+		return this.msgPool;
+	}
+
+	public MsgPool<PhyPingMsg> getPingPool() {
+		return this.pingPool;
+	}
+
+	private PhyMsg newMsg() {
+		MsgPool<PhyMsg> pool = this.msgPool;
+		if (pool == null)
+			return new PhyMsg();
+		PhyMsg m = pool.acquire();
+		m.pingPool = this.pingPool;
+		return m;
+	}
+
 	/*
 	 * wrapper method to basic receive method -> call blocks on socket until message is received or 
 	 * timeout expires and exception is raised
 	 */
 	public Msg receive(int timeout) throws IOException {
-		socket.setSoTimeout(timeout);
-		Msg in;
-		in = receive();
+		setTimeout(timeout);
+		return read();
+	}
 
-		socket.setSoTimeout(0);
-		return in;
+	/*
+	 * Receive the next legal message, waiting at most until deadline (a System.nanoTime() value)
+	 * Illegal messages are dropped without restarting the wait -> never returns null,
+	 * raises SocketTimeoutException once the deadline has passed
+	 */
+	public Msg receiveUntil(long deadline) throws IOException {
+		while (true) {
+			int remaining = remainingMillis(deadline);
+			if (remaining <= 0)
+				throw new SocketTimeoutException();
+			setTimeout(remaining);
+			Msg in = read();
+			if (in != null)
+				return in;
+		}
+	}
+
+	/*
+	 * Milliseconds left until deadline, rounded up so that a wait never ends early
+	 * <= 0 if the deadline has passed
+	 */
+	protected static int remainingMillis(long deadline) {
+		long nanos = deadline - System.nanoTime();
+		if (nanos <= 0)
+			return 0;
+		return (int) Math.min(Integer.MAX_VALUE, (nanos + 999_999L) / 1_000_000L);
+	}
+
+	// SO_TIMEOUT is only changed if it differs from the value currently set
+	private void setTimeout(int timeout) throws SocketException {
+		if (timeout != this.soTimeout) {
+			this.socket.setSoTimeout(timeout);
+			this.soTimeout = timeout;
+		}
 	}
 	
+	/*
+	 * Create a bounded queue for messages with protocol id pid
+	 * Messages for pid read by receive(proto_id, int) of another protocol are kept there instead of being dropped.
+	 * Messages read by receive(), receiveBatch() or receiveAsync() are not routed (see PhyDemux).
+	 */
+	public void register(proto_id pid, int capacity) {
+		this.demux.register(pid, capacity);
+	}
+
+	public boolean hasQueue(proto_id pid) {
+		return this.demux.queue(pid) != null;
+	}
+
+	public PhyDemux getDemux() {
+		return this.demux;
+	}
+
+	/*
+	 * Receive the next message with protocol id pid (a queue must be registered for it)
+	 * waits at most timeout ms (0 = no limit), raises SocketTimeoutException if nothing arrived
+	 */
+	public Msg receive(proto_id pid, int timeout) throws IOException {
+		return receive(pid, timeout != 0, System.nanoTime() + timeout * 1_000_000L);
+	}
+
+	/*
+	 * Same as receive(proto_id, int) with an absolute deadline (a System.nanoTime() value)
+	 */
+	public Msg receiveUntil(proto_id pid, long deadline) throws IOException {
+		return receive(pid, true, deadline);
+	}
+
+	/*
+	 * Only one caller reads the socket at a time; messages for other protocol ids are routed to their queues.
+	 * Callers waiting meanwhile take their messages from the queue or become the next reader.
+	 */
+	private Msg receive(proto_id pid, boolean bounded, long deadline) throws IOException {
+		BlockingQueue<Msg> q = this.demux.queue(pid);
+		if (q == null)
+			throw new IllegalStateException("No queue registered for " + pid);
+		while (true) {
+			Msg m = q.poll();
+			if (m != null)
+				return m;
+			int remaining = bounded ? remainingMillis(deadline) : PHY_DEMUX_SLICE;
+			if (remaining <= 0)
+				throw new SocketTimeoutException();
+			if (this.demux.reader.tryLock()) {
+				try {
+					// the previous reader may have routed our message before handing over
+					m = q.poll();
+					if (m != null)
+						return m;
+					Msg in = bounded ? receiveUntil(deadline) : receive();
+					if (in == null)
+						continue;
+					if (((PhyConfiguration) in.getConfiguration()).getPid() == pid)
+						return in;
+					this.demux.route(in);
+				} finally {
+					this.demux.reader.unlock();
+				}
+			} else {
+				// another caller reads the socket -> wait for it to route a message to us or to finish
+				try {
+					m = q.poll(Math.min(remaining, PHY_DEMUX_SLICE), TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				if (m != null)
+					return m;
+			}
+		}
+	}
+
+	/*
+	 * Future completed with the next received message, does not block
+	 * The first call hands the socket to an I/O thread that completes the futures in call order;
+	 * from then on the synchronous receive methods must not be used on this instance.
+	 * Messages arriving while no future is waiting are kept for the next calls (up to PHY_ASYNC_BACKLOG).
+	 * Dependent actions of the future run on the I/O thread unless an async variant is used.
+	 */
+	public CompletableFuture<Msg> receiveAsync() {
+		CompletableFuture<Msg> f = new CompletableFuture<>();
+		Msg m;
+		boolean start = false;
+		synchronized (this.asyncReceivers) {
+			m = this.asyncUnclaimed.poll();
+			if (m == null) {
+				this.asyncReceivers.add(f);
+				start = !this.asyncStarted;
+				this.asyncStarted = true;
+			}
+		}
+		if (m != null) {
+			f.complete(m);
+		} else if (start) {
+			try {
+				startAsyncReceive();
+			} catch (IOException e) {
+				failAsyncReceivers(e);
+			}
+		}
+		return f;
+	}
+
+	/*
+	 * Run the receive loop for receiveAsync()
+	 * A blocking socket cannot be multiplexed -> one thread per instance
+	 */
+	protected void startAsyncReceive() throws IOException {
+		Thread t = new Thread(() -> {
+			try {
+				while (true) {
+					Msg in = receive();
+					if (in != null)
+						deliverAsync(in);
+				}
+			} catch (IOException e) {
+				failAsyncReceivers(e);
+			}
+		}, "phy-receive-" + this.socket.getLocalPort());
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/*
+	 * Called by the I/O thread for every received message -> completes the oldest waiting future
+	 */
+	protected void deliverAsync(Msg m) {
+		while (true) {
+			CompletableFuture<Msg> f;
+			synchronized (this.asyncReceivers) {
+				f = this.asyncReceivers.poll();
+				if (f == null) {
+					if (this.asyncUnclaimed.size() < PHY_ASYNC_BACKLOG)
+						this.asyncUnclaimed.add(m);
+					else
+						m.release();
+					return;
+				}
+			}
+			// a cancelled future does not take the message
+			if (f.complete(m))
+				return;
+		}
+	}
+
+	protected void failAsyncReceivers(IOException e) {
+		while (true) {
+			CompletableFuture<Msg> f;
+			synchronized (this.asyncReceivers) {
+				f = this.asyncReceivers.poll();
+			}
+			if (f == null)
+				return;
+			f.completeExceptionally(e);
+		}
+	}
+
+	/*
+	 * Receive up to max messages with one call
+	 * waits at most timeout ms (0 = no limit) for the first message; returns an empty batch if none arrived
+	 * A blocking socket cannot be drained, so this implementation returns at most one message.
+	 * Illegal messages are dropped and not part of the batch.
+	 * The returned batch is reused by the next call.
+	 */
+	public PhyMsgBatch receiveBatch(int max, int timeout) throws IOException {
+		this.batch.reset(max);
+		try {
+			Msg in = receive(timeout);
+			if (in != null)
+				this.batch.add(in);
+		} catch (SocketTimeoutException e) {
+			// nothing arrived -> empty batch
+		}
+		return this.batch;
+	}
+
 	// Send three ping messages to another system
 	public void ping(Configuration config) throws IOException, IWProtocolException {
 		for(int i=0; i<3;i++) {
@@ -0,0 +1,180 @@
+package phy;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import core.Msg;
+
+/*
+ * Asynchronous send path of a PhyProtocol
+ * Any number of threads enqueue outbound messages, one writer thread drains the queue in batches
+ * and hands them to the transport -> a full socket buffer stalls the writer, not the caller.
+ * The queue is bounded: messages offered while it is full are dropped and counted.
+ * A message must not be modified or released by the caller after it was enqueued.
+ */
+public class PhySendQueue {
+	private final PhyProtocol phy;
+	private final int capacity;
+	// lock-free, many producers and a single consumer
+	private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger depth = new AtomicInteger();
+	private final LongAdder enqueued = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	// written by the writer thread only, by close() once the writer stopped
+	private volatile long sent;
+	private volatile boolean running = true;
+	// set by the writer right before it parks, producers unpark it if set
+	private volatile boolean parked;
+	// flush() waits on this until the writer caught up
+	private final Object idle = new Object();
+	// flush() calls waiting on idle, changed while holding idle -> the writer notifies per message while > 0
+	private volatile int flushers;
+	private final Thread writer;
+
+	private static class Entry {
+		final Msg msg;
+		// null -> msg is a complete PhyMsg
+		final PhyConfiguration config;
+
+		Entry(Msg msg, PhyConfiguration config) {
+			this.msg = msg;
+			this.config = config;
+		}
+	}
+
+	PhySendQueue(PhyProtocol phy, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be >= 1");
+		this.phy = phy;
+		this.capacity = capacity;
+		this.writer = new Thread(this::run, "phy-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/*
+	 * Enqueue a message of the next higher layer (config != null) or a complete PhyMsg (config == null)
+	 * returns false if the message was dropped because the queue is full or closed
+	 */
+	boolean offer(Msg msg, PhyConfiguration config) {
+		if (!this.running) {
+			this.dropped.increment();
+			return false;
+		}
+		int d = this.depth.incrementAndGet();
+		if (d > this.capacity) {
+			this.depth.decrementAndGet();
+			this.dropped.increment();
+			return false;
+		}
+		Entry e = new Entry(msg, config);
+		this.queue.add(e);
+		// close() ran meanwhile: take the message back unless the writer or close() got it already
+		if (!this.running && this.queue.remove(e)) {
+			this.depth.decrementAndGet();
+			this.dropped.increment();
+			return false;
+		}
+		this.enqueued.increment();
+		// the writer re-checks the queue after announcing it parks -> either it sees e or we see parked
+		if (this.parked)
+			LockSupport.unpark(this.writer);
+		return true;
+	}
+
+	/*
+	 * Block until every message enqueued before the call (by any thread) has been handed to the transport
+	 */
+	public void flush() throws InterruptedException {
+		long target = this.enqueued.sum();
+		synchronized (this.idle) {
+			this.flushers++;
+			try {
+				while (this.sent < target && this.writer.isAlive())
+					this.idle.wait();
+			} finally {
+				this.flushers--;
+			}
+		}
+	}
+
+	/*
+	 * Stop accepting messages, send everything still queued and stop the writer thread
+	 * Messages offered concurrently are either sent or counted as dropped.
+	 */
+	public void close() throws InterruptedException {
+		this.running = false;
+		LockSupport.unpark(this.writer);
+		this.writer.join();
+		// added after the writer saw an empty queue and before the producer saw running == false
+		Entry e;
+		while ((e = this.queue.poll()) != null)
+			transmit(e);
+		synchronized (this.idle) {
+			this.idle.notifyAll();
+		}
+	}
+
+	// Messages waiting for the writer
+	public int getDepth() {
+		return this.depth.get();
+	}
+
+	// Messages rejected because the queue was full or closed
+	public long getDropped() {
+		return this.dropped.sum();
+	}
+
+	// Messages handed to the transport, including the ones that failed
+	public long getSent() {
+		return this.sent;
+	}
+
+	// Messages the transport failed to send
+	public long getErrors() {
+		return this.errors.sum();
+	}
+
+	private void run() {
+		while (true) {
+			Entry e = this.queue.poll();
+			if (e == null) {
+				synchronized (this.idle) {
+					this.idle.notifyAll();
+				}
+				if (!this.running)
+					return;
+				this.parked = true;
+				if (this.queue.isEmpty() && this.running)
+					LockSupport.park(this);
+				this.parked = false;
+				continue;
+			}
+			transmit(e);
+		}
+	}
+
+	private void transmit(Entry e) {
+		this.depth.decrementAndGet();
+		try {
+			if (e.config == null)
+				this.phy.transmit((PhyMsg) e.msg);
+			else
+				this.phy.transmit(e.msg, e.config);
+		} catch (IOException ex) {
+			this.errors.increment();
+			System.out.println("[PhySendQueue] Send failed: " + ex.getMessage());
+		}
+		this.sent++;
+		// under steady load the queue never runs empty -> a waiting flush() must not rely on the idle wakeup
+		if (this.flushers > 0) {
+			synchronized (this.idle) {
+				this.idle.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,513 @@
+package cp;
+
+import core.Msg;
+import core.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import phy.PhyChannelProtocol;
+import phy.PhyConfiguration;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CPAsyncCommandTest {
+    PhyChannelProtocol serverPhy;
+    PhyChannelProtocol clientPhy;
+    CPProtocol client;
+
+    @BeforeEach
+    void setup() throws IOException {
+        serverPhy = new PhyChannelProtocol(0);
+        clientPhy = new PhyChannelProtocol(0);
+        int port = ((InetSocketAddress) serverPhy.getChannel().getLocalAddress()).getPort();
+        // one endpoint acts as cookie and command server
+        client = new CPProtocol(InetAddress.getLoopbackAddress(), port, clientPhy);
+        client.setCookieServer(InetAddress.getLoopbackAddress(), port);
+    }
+
+    @AfterEach
+    void teardown() throws IOException {
+        serverPhy.close();
+        clientPhy.close();
+    }
+
+    // next message received by the server, cookie requests are answered on the way
+    private CPMsg receiveCP(int timeout) throws Exception {
+        while (true) {
+            Msg in = serverPhy.receive(timeout);
+            PhyConfiguration peer = (PhyConfiguration) in.getConfiguration();
+            CPMsg cp = (CPMsg) new CPMsg().parse(in.getData());
+            if (cp instanceof CPCookieRequestMsg) {
+                serverPhy.send("cp cookie_response ACK 42", peer);
+            } else {
+                cp.setConfiguration(peer);
+                return cp;
+            }
+        }
+    }
+
+    private CPCommandMsg receiveCommand(int timeout) throws Exception {
+        return (CPCommandMsg) receiveCP(timeout);
+    }
+
+    private void answer(CPCommandMsg c) throws IOException {
+        CPCommandResponseMsg res = new CPCommandResponseMsg();
+        res.prepare(c.getId(), true, c.getCommand().toUpperCase());
+        serverPhy.send(res, (PhyConfiguration) c.getConfiguration());
+    }
+
+    // collect n commands and answer them in reverse order
+    private Thread serve(int n) {
+        Thread t = new Thread(() -> {
+            try {
+                List<CPCommandMsg> commands = new ArrayList<>();
+                while (commands.size() < n)
+                    commands.add(receiveCommand(2000));
+                for (int i = commands.size() - 1; i >= 0; i--)
+                    answer(commands.get(i));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    @Test
+    @DisplayName("In async mode receive() waits for the response to send() and never reads the socket itself")
+    void receiveInAsyncModeTest() throws Exception {
+        Thread server = serve(2);
+        CompletableFuture<CPCommandResponseMsg> a = client.sendCommandAsync("print a");
+        client.send("print b", null);
+        assertEquals("PRINT B", ((CPCommandResponseMsg) client.receive()).getResponse());
+        assertEquals("PRINT A", a.get(5, TimeUnit.SECONDS).getResponse());
+        server.join();
+        // nothing sent with send() is outstanding -> the socket belongs to the async receiver
+        assertThrows(IllegalStateException.class, () -> client.receive());
+    }
+
+    @Test
+    @DisplayName("Async commands are completed by their own responses, also out of order")
+    void sendCommandAsyncTest() throws Exception {
+        Thread server = serve(3);
+        CompletableFuture<CPCommandResponseMsg> a = client.sendCommandAsync("print a");
+        CompletableFuture<CPCommandResponseMsg> b = client.sendCommandAsync("print b");
+        CompletableFuture<CPCommandResponseMsg> c = client.sendCommandAsync("print c");
+
+        assertEquals("PRINT A", a.get(5, TimeUnit.SECONDS).getResponse());
+        assertEquals("PRINT B", b.get(5, TimeUnit.SECONDS).getResponse());
+        assertEquals("PRINT C", c.get(5, TimeUnit.SECONDS).getResponse());
+        server.join();
+    }
+
+    @Test
+    @DisplayName("No more than window commands are outstanding, queued ones follow when slots free up")
+    void windowTest() throws Exception {
+        AtomicBoolean windowHeld = new AtomicBoolean();
+        Thread server = new Thread(() -> {
+            try {
+                CPCommandMsg first = receiveCommand(2000);
+                CPCommandMsg second = receiveCommand(2000);
+                try {
+                    receiveCommand(300);
+                } catch (SocketTimeoutException e) {
+                    windowHeld.set(true);
+                }
+                answer(first);
+                answer(second);
+                answer(receiveCommand(2000));
+                answer(receiveCommand(2000));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+        client.setWindow(2);
+        // without a cookie sendCommandAsync() returns before the command is queued
+        client.requestCookie();
+        List<CompletableFuture<CPCommandResponseMsg>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            futures.add(client.sendCommandAsync("print " + i));
+        assertEquals(2, client.getInFlight());
+        assertEquals(4, client.getPending());
+
+        for (int i = 0; i < 4; i++)
+            assertEquals("PRINT " + i, futures.get(i).get(5, TimeUnit.SECONDS).getResponse());
+        server.join();
+        assertTrue(windowHeld.get());
+    }
+
+    @Test
+    @DisplayName("A command without response is retransmitted with the same id")
+    void retransmitTest() throws Exception {
+        AtomicInteger retransmittedId = new AtomicInteger(-1);
+        Thread server = new Thread(() -> {
+            try {
+                // the first transmission gets lost
+                CPCommandMsg lost = receiveCommand(2000);
+                CPCommandMsg again = receiveCommand(5000);
+                if (again.getId() == lost.getId())
+                    retransmittedId.set(again.getId());
+                answer(again);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+        CompletableFuture<CPCommandResponseMsg> f = client.sendCommandAsync("print lost");
+        assertEquals("PRINT LOST", f.get(8, TimeUnit.SECONDS).getResponse());
+        server.join();
+        assertEquals(f.get().getId(), retransmittedId.get());
+    }
+
+    @Test
+    @DisplayName("With adaptive timeouts a lost command is retransmitted after the measured RTO")
+    void adaptiveRetransmitTest() throws Exception {
+        AtomicLong gap = new AtomicLong(-1);
+        Thread server = new Thread(() -> {
+            try {
+                answer(receiveCommand(2000));
+                receiveCommand(2000);
+                long lostAt = System.nanoTime();
+                CPCommandMsg again = receiveCommand(5000);
+                gap.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lostAt));
+                answer(again);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+        client.setAdaptiveTimeout(true);
+        client.sendCommandAsync("print first").get(5, TimeUnit.SECONDS);
+        assertEquals("PRINT LOST", client.sendCommandAsync("print lost").get(5, TimeUnit.SECONDS).getResponse());
+        server.join();
+
+        CPRttEstimator est = client.getRttEstimator(new PhyConfiguration(InetAddress.getLoopbackAddress(),
+                ((InetSocketAddress) serverPhy.getChannel().getLocalAddress()).getPort(), Protocol.proto_id.CP));
+        assertTrue(est.getSamples() >= 1);
+        assertTrue(gap.get() >= 0 && gap.get() < 1000, "retransmitted after " + gap.get() + " ms");
+    }
+
+    @Test
+    @DisplayName("Commands sent back to back are coalesced into one batch frame and answered by one")
+    void batchingTest() throws Exception {
+        AtomicInteger batchSize = new AtomicInteger();
+        Thread server = new Thread(() -> {
+            try {
+                CPCommandBatchMsg batch = (CPCommandBatchMsg) receiveCP(2000);
+                batchSize.set(batch.size());
+                CPCommandResponseBatchMsg res = new CPCommandResponseBatchMsg();
+                for (CPCommandMsg c : batch.getCommands()) {
+                    CPCommandResponseMsg r = new CPCommandResponseMsg();
+                    r.prepare(c.getId(), true, c.getCommand().toUpperCase());
+                    res.add(r);
+                }
+                serverPhy.send(res, (PhyConfiguration) batch.getConfiguration());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+        client.setBatching(5, 200_000);
+        List<CompletableFuture<CPCommandResponseMsg>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            futures.add(client.sendCommandAsync("status " + i));
+        for (int i = 0; i < 5; i++)
+            assertEquals("STATUS " + i, futures.get(i).get(5, TimeUnit.SECONDS).getResponse());
+        server.join();
+        assertEquals(5, batchSize.get());
+    }
+
+    @Test
+    @DisplayName("Cookies with an announced lifetime are renewed in the background before they expire")
+    void cookieRenewalTest() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread server = new Thread(() -> {
+            try {
+                while (!stop.get()) {
+                    Msg in;
+                    try {
+                        in = serverPhy.receive(100);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    PhyConfiguration peer = (PhyConfiguration) in.getConfiguration();
+                    CPMsg cp = (CPMsg) new CPMsg().parse(in.getData());
+                    if (cp instanceof CPCookieRequestMsg) {
+                        serverPhy.send("cp cookie_response ACK " + requests.incrementAndGet() + " 400", peer);
+                    } else {
+                        cp.setConfiguration(peer);
+                        answer((CPCommandMsg) cp);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+        try {
+            client.startCookieRenewal().get(5, TimeUnit.SECONDS);
+            assertEquals(1, requests.get());
+            // the receiver of the async mode picks up the renewed cookies
+            assertEquals("STATUS", client.sendCommandAsync("status").get(5, TimeUnit.SECONDS).getResponse());
+            Thread.sleep(1000);
+            // renewed after 3/4 of every lifetime, not on the send path
+            assertTrue(requests.get() >= 3, "renewals: " + requests.get());
+            int before = requests.get();
+            assertEquals("STATUS", client.sendCommandAsync("status").get(5, TimeUnit.SECONDS).getResponse());
+            assertTrue(requests.get() - before <= 1);
+        } finally {
+            stop.set(true);
+            server.join();
+        }
+    }
+
+    @Test
+    @DisplayName("Concurrent senders without a cookie share one cookie request")
+    void singleFlightCookieTest() throws Exception {
+        int n = 8;
+        AtomicInteger requests = new AtomicInteger();
+        Thread server = new Thread(() -> {
+            try {
+                int answered = 0;
+                while (answered < n) {
+                    Msg in = serverPhy.receive(5000);
+                    PhyConfiguration peer = (PhyConfiguration) in.getConfiguration();
+                    CPMsg cp = (CPMsg) new CPMsg().parse(in.getData());
+                    if (cp instanceof CPCookieRequestMsg) {
+                        requests.incrementAndGet();
+                        // let the other senders pile up behind the first request
+                        Thread.sleep(200);
+                        serverPhy.send("cp cookie_response ACK 42", peer);
+                    } else {
+                        cp.setConfiguration(peer);
+                        answer((CPCommandMsg) cp);
+                        answered++;
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+        CountDownLatch go = new CountDownLatch(1);
+        List<CompletableFuture<CompletableFuture<CPCommandResponseMsg>>> senders = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            String command = "status " + i;
+            senders.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return client.sendCommandAsync(command);
+            }, r -> new Thread(r).start()));
+        }
+        go.countDown();
+        for (int i = 0; i < n; i++)
+            assertEquals("STATUS " + i, senders.get(i).get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS).getResponse());
+        server.join();
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    @DisplayName("Many threads share one client and one port, every caller gets the response to its own command")
+    void concurrentClientTest() throws Exception {
+        int threads = 32;
+        int perThread = 10;
+        AtomicInteger requests = new AtomicInteger();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread server = new Thread(() -> {
+            try {
+                while (!stop.get()) {
+                    Msg in;
+                    try {
+                        in = serverPhy.receive(100);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    PhyConfiguration peer = (PhyConfiguration) in.getConfiguration();
+                    CPMsg cp = (CPMsg) new CPMsg().parse(in.getData());
+                    if (cp instanceof CPCookieRequestMsg) {
+                        requests.incrementAndGet();
+                        serverPhy.send("cp cookie_response ACK 42", peer);
+                    } else {
+                        cp.setConfiguration(peer);
+                        answer((CPCommandMsg) cp);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+        AtomicInteger correct = new AtomicInteger();
+        List<Thread> callers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String prefix = "status " + t + "-";
+            Thread caller = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        if (client.sendCommand(prefix + i).getResponse().equals((prefix + i).toUpperCase()))
+                            correct.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            callers.add(caller);
+            caller.start();
+        }
+        try {
+            for (Thread caller : callers)
+                caller.join(10_000);
+            assertEquals(threads * perThread, correct.get());
+            assertEquals(1, requests.get());
+            assertEquals(0, client.getPending());
+        } finally {
+            stop.set(true);
+            server.join();
+        }
+    }
+
+    @Test
+    @DisplayName("A command chained onto a response does not block the receiver when the cookie expired")
+    void chainedCommandTest() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread server = new Thread(() -> {
+            try {
+                while (!stop.get()) {
+                    Msg in;
+                    try {
+                        in = serverPhy.receive(100);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    PhyConfiguration peer = (PhyConfiguration) in.getConfiguration();
+                    CPMsg cp = (CPMsg) new CPMsg().parse(in.getData());
+                    if (cp instanceof CPCookieRequestMsg) {
+                        requests.incrementAndGet();
+                        serverPhy.send("cp cookie_response ACK " + requests.get() + " 200", peer);
+                    } else {
+                        cp.setConfiguration(peer);
+                        // the cookie expires while the first command is executed
+                        if (((CPCommandMsg) cp).getCommand().equals("first"))
+                            Thread.sleep(300);
+                        answer((CPCommandMsg) cp);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+        try {
+            long start = System.nanoTime();
+            CPCommandResponseMsg r = client.sendCommandAsync("first")
+                    .thenCompose(first -> client.sendCommandAsync("second"))
+                    .get(5, TimeUnit.SECONDS);
+            assertEquals("SECOND", r.getResponse());
+            assertEquals(2, requests.get());
+            // no cookie request timed out on the way
+            assertTrue(System.nanoTime() - start < 2_000_000_000L);
+        } finally {
+            stop.set(true);
+            server.join();
+        }
+    }
+
+    /*
+     * Answers cookie requests with cookie n and the lifetime until stopped, commands are echoed
+     * duplicateAfter > 0: every cookie response is sent again that many ms later, with another cookie
+     */
+    private Thread serveCookies(AtomicBoolean stop, AtomicInteger requests, long lifetime, long duplicateAfter) {
+        Thread server = new Thread(() -> {
+            try {
+                while (!stop.get()) {
+                    Msg in;
+                    try {
+                        in = serverPhy.receive(100);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    PhyConfiguration peer = (PhyConfiguration) in.getConfiguration();
+                    CPMsg cp = (CPMsg) new CPMsg().parse(in.getData());
+                    if (cp instanceof CPCookieRequestMsg) {
+                        int n = requests.incrementAndGet();
+                        serverPhy.send("cp cookie_response ACK " + n + " " + lifetime, peer);
+                        if (duplicateAfter > 0)
+                            CompletableFuture.delayedExecutor(duplicateAfter, TimeUnit.MILLISECONDS).execute(() -> {
+                                try {
+                                    serverPhy.send("cp cookie_response ACK " + (n + 1000) + " " + lifetime, peer);
+                                } catch (Exception e) {
+                                    e.printStackTrace();
+                                }
+                            });
+                    } else {
+                        cp.setConfiguration(peer);
+                        answer((CPCommandMsg) cp);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    @Test
+    @DisplayName("An idle client using send() and receive() renews its cookie before it expires")
+    void idleClientRenewalTest() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread server = serveCookies(stop, requests, 400, 0);
+        try {
+            client.startCookieRenewal().get(5, TimeUnit.SECONDS);
+            // nothing is sent or received meanwhile
+            Thread.sleep(1000);
+            assertTrue(requests.get() >= 3, "renewals: " + requests.get());
+            int before = requests.get();
+            client.send("status", null);
+            assertEquals("STATUS", ((CPCommandResponseMsg) client.receive()).getResponse());
+            assertTrue(requests.get() - before <= 1);
+        } finally {
+            stop.set(true);
+            server.join();
+        }
+    }
+
+    @Test
+    @DisplayName("A late duplicate cookie response does not extend the life of the cookie")
+    void staleCookieResponseTest() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread server = serveCookies(stop, requests, 300, 150);
+        try {
+            assertEquals("FIRST", client.sendCommandAsync("first").get(5, TimeUnit.SECONDS).getResponse());
+            // the first cookie expired, the duplicate must not have replaced it
+            Thread.sleep(400);
+            assertEquals("SECOND", client.sendCommandAsync("second").get(5, TimeUnit.SECONDS).getResponse());
+            assertEquals(2, requests.get());
+        } finally {
+            stop.set(true);
+            server.join();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package cp;
+
+import exceptions.BadChecksumException;
+import exceptions.IllegalMsgException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CPCommandMsgTest {
+    @Test
+    @DisplayName("Command message creation test")
+    void createTest() {
+        CPCommandMsg cmd = new CPCommandMsg();
+        cmd.create(5, "print hi");
+        assertEquals("cp command 5 8 print hi 2768032688", new String(cmd.getDataBytes()));
+    }
+
+    @Test
+    @DisplayName("Encoding into a buffer matches create()")
+    void encodeTest() {
+        CPCommandMsg cmd = new CPCommandMsg();
+        cmd.prepare(5, "print hi");
+        ByteBuffer out = ByteBuffer.allocate(100);
+        cmd.encode(out);
+        assertEquals("cp command 5 8 print hi 2768032688", new String(out.array(), 0, out.position()));
+
+        CPCommandResponseMsg res = new CPCommandResponseMsg();
+        res.create(5, true, "hi");
+        assertEquals("cp command_response 5 ok 2 hi 150491141", new String(res.getDataBytes()));
+    }
+
+    @Test
+    @DisplayName("Created messages are accepted by the parser")
+    void roundTripTest() throws Exception {
+        CPCommandMsg cmd = new CPCommandMsg();
+        cmd.create(17, "print Grüße");
+        CPCommandMsg parsed = (CPCommandMsg) new CPMsg().parse(cmd.getData());
+        assertEquals(17, parsed.getId());
+        assertEquals("print Grüße", parsed.getCommand());
+        assertEquals(cmd.getCrc32(), parsed.getCrc32());
+    }
+
+    @Test
+    @DisplayName("Batch frames carry byte-exact commands and drop only entries with a wrong CRC")
+    void batchTest() throws Exception {
+        CPCommandBatchMsg batch = new CPCommandBatchMsg();
+        String[] commands = {"status", "print  two  spaces", ""};
+        for (int i = 0; i < commands.length; i++) {
+            CPCommandMsg c = new CPCommandMsg();
+            c.prepare(i, commands[i]);
+            batch.add(c);
+        }
+        batch.create(null);
+        CPCommandBatchMsg parsed = (CPCommandBatchMsg) new CPMsg().parse(batch.getData());
+        assertEquals(3, parsed.size());
+        for (int i = 0; i < commands.length; i++) {
+            assertEquals(i, parsed.getCommands().get(i).getId());
+            assertEquals(commands[i], parsed.getCommands().get(i).getCommand());
+        }
+
+        String corrupt = batch.getData().replace("status", "statuS");
+        parsed = (CPCommandBatchMsg) new CPMsg().parse(corrupt);
+        assertEquals(2, parsed.size());
+        assertEquals(1, parsed.getRejected());
+
+        // a wrong length breaks the framing of the whole frame
+        assertThrows(IllegalMsgException.class, () -> new CPMsg().parse("cp command_batch 2 0 6 status 1"));
+
+        // received bytes are parsed in place, the entries are views into the datagram
+        byte[] wire = ("  " + corrupt + "\n").getBytes(StandardCharsets.UTF_8);
+        parsed = (CPCommandBatchMsg) new CPMsg().parse(wire, 2, wire.length - 1);
+        assertEquals(2, parsed.size());
+        assertEquals(1, parsed.getRejected());
+        assertEquals("print  two  spaces", parsed.getCommands().get(0).getCommand());
+    }
+
+    @Test
+    @DisplayName("Batched responses are matched to the batch entries by id")
+    void responseBatchTest() throws Exception {
+        CPCommandResponseBatchMsg batch = new CPCommandResponseBatchMsg();
+        CPCommandResponseMsg ok = new CPCommandResponseMsg();
+        ok.prepare(4, true, "fine");
+        CPCommandResponseMsg error = new CPCommandResponseMsg();
+        error.prepare(5, false, "");
+        batch.add(ok);
+        batch.add(error);
+        batch.create(null);
+        assertTrue(batch.getData().startsWith("cp command_response_batch 2 4 ok 4 fine "));
+
+        CPCommandResponseBatchMsg parsed = (CPCommandResponseBatchMsg) new CPMsg().parse(batch.getData());
+        assertEquals(2, parsed.size());
+        assertEquals("fine", parsed.getResponses().get(0).getResponse());
+        assertFalse(parsed.getResponses().get(1).isSuccess());
+        assertEquals(error.getCrc32(), parsed.getResponses().get(1).getCrc32());
+    }
+
+    @Test
+    @DisplayName("CRC32C is flagged on the CRC field and accepted by the byte parser")
+    void crc32cTest() throws Exception {
+        CPCommandMsg cmd = new CPCommandMsg();
+        cmd.setChecksum(CPChecksum.CRC32C);
+        cmd.create(5, "print hi");
+        CRC32C expected = new CRC32C();
+        expected.update("command 5 8 print hi".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("cp command 5 8 print hi C" + expected.getValue(), cmd.getData());
+
+        byte[] wire = cmd.getDataBytes();
+        CPCommandMsg parsed = (CPCommandMsg) new CPMsg().parse(wire, 0, wire.length);
+        assertEquals(CPChecksum.CRC32C, parsed.getChecksum());
+        assertEquals("print hi", parsed.getCommand());
+
+        CPCommandResponseMsg res = new CPCommandResponseMsg();
+        res.setChecksum(parsed.getChecksum());
+        res.create(5, true, "hi");
+        wire = res.getDataBytes();
+        CPCommandResponseMsg parsedRes = (CPCommandResponseMsg) new CPMsg().parse(wire, 0, wire.length);
+        assertEquals(CPChecksum.CRC32C, parsedRes.getChecksum());
+        assertEquals("hi", parsedRes.getResponse());
+    }
+
+    @Test
+    @DisplayName("A corrupt command is rejected on the raw bytes before a message object is taken")
+    void earlyRejectTest() {
+        CPCommandMsg cmd = new CPCommandMsg();
+        cmd.create(5, "print hi");
+        byte[] wire = cmd.getDataBytes();
+        // flip one payload byte, the CRC field stays intact
+        wire[wire.length - 12] ^= 1;
+        CPMsgPools pools = new CPMsgPools();
+        assertThrows(BadChecksumException.class, () -> new CPMsg(pools).parse(wire, 0, wire.length));
+        assertEquals(0, pools.getCreated());
+        // two separators in front of the CRC change the covered bytes as well
+        byte[] spaced = "cp command 5 8 print hi  2768032688".getBytes(StandardCharsets.US_ASCII);
+        assertThrows(BadChecksumException.class, () -> new CPMsg(pools).parse(spaced, 0, spaced.length));
+    }
+
+    @Test
+    @DisplayName("Whitespace inside the payload survives parsing byte-exact")
+    void whitespacePayloadTest() throws Exception {
+        CPCommandMsg cmd = new CPCommandMsg();
+        cmd.create(3, " print  two\tspaces ");
+        CPCommandMsg parsed = (CPCommandMsg) new CPMsg().parse(cmd.getData());
+        assertEquals(" print  two\tspaces ", parsed.getCommand());
+
+        CPCommandResponseMsg res = new CPCommandResponseMsg();
+        res.create(3, true, "a   b");
+        byte[] wire = ("  " + res.getData() + "\n").getBytes(StandardCharsets.UTF_8);
+        CPCommandResponseMsg parsedRes = (CPCommandResponseMsg) new CPMsg().parse(wire, 2, wire.length - 1);
+        assertEquals("a   b", parsedRes.getResponse());
+        assertEquals(5, parsedRes.getLength());
+
+        // a length not matching the payload is rejected instead of re-joining tokens
+        assertThrows(IllegalMsgException.class, () -> new CPMsg().parse("cp command 3 4 print hi 1"));
+    }
+}
@@ -0,0 +1,151 @@
+package cp;
+
+import exceptions.CookieTimeoutException;
+import core.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import phy.PhyChannelProtocol;
+import phy.PhyConfiguration;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CPCommandProcessorTest {
+    PhyChannelProtocol cookiePhy;
+    PhyChannelProtocol commandPhy;
+    PhyChannelProtocol clientPhy;
+    CPShardedCookieServer cookies;
+    CPCommandProcessor server;
+    CPProtocol client;
+
+    private static int port(PhyChannelProtocol phy) throws Exception {
+        return ((InetSocketAddress) phy.getChannel().getLocalAddress()).getPort();
+    }
+
+    @BeforeEach
+    void setup() throws Exception {
+        cookiePhy = new PhyChannelProtocol(0);
+        commandPhy = new PhyChannelProtocol(0);
+        clientPhy = new PhyChannelProtocol(0);
+        cookies = new CPShardedCookieServer(cookiePhy, 1, 16, 60_000);
+        cookies.start();
+        server = new CPCommandProcessor(new CPProtocol(commandPhy, false), commandPhy, 2);
+        server.start();
+        client = new CPProtocol(InetAddress.getLoopbackAddress(), port(commandPhy), clientPhy);
+        client.setCookieServer(InetAddress.getLoopbackAddress(), port(cookiePhy));
+    }
+
+    @AfterEach
+    void teardown() throws Exception {
+        server.close();
+        cookies.close();
+        clientPhy.close();
+        commandPhy.close();
+        cookiePhy.close();
+    }
+
+    @Test
+    @DisplayName("Workers execute status and print and reject unknown commands")
+    void executeTest() throws Exception {
+        CPCommandResponseMsg status = client.sendCommandAsync("status").get(5, TimeUnit.SECONDS);
+        assertTrue(status.isSuccess());
+        assertTrue(status.getResponse().startsWith("running"));
+        CPCommandResponseMsg print = client.sendCommandAsync("print hello  world").get(5, TimeUnit.SECONDS);
+        assertTrue(print.isSuccess());
+        // an error response completes the command exceptionally on the client
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> client.sendCommandAsync("reboot").get(5, TimeUnit.SECONDS));
+        assertInstanceOf(CookieTimeoutException.class, e.getCause());
+
+        assertEquals(3, server.getExecuted());
+        assertEquals(1, server.getFailed());
+        assertEquals(0, server.getDropped());
+    }
+
+    @Test
+    @DisplayName("Batched commands are answered by batch frames, the checksum of the command is mirrored")
+    void batchTest() throws Exception {
+        client.setChecksum(CPChecksum.CRC32C);
+        client.setBatching(8, 200_000);
+        List<CompletableFuture<CPCommandResponseMsg>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            futures.add(client.sendCommandAsync(i % 2 == 0 ? "status" : "print " + i));
+        for (CompletableFuture<CPCommandResponseMsg> f : futures) {
+            CPCommandResponseMsg res = f.get(5, TimeUnit.SECONDS);
+            assertTrue(res.isSuccess());
+            assertEquals(CPChecksum.CRC32C, res.getChecksum());
+        }
+        assertEquals(8, server.getExecuted());
+        assertTrue(server.getReceived() < 8);
+    }
+
+    @Test
+    @DisplayName("A retransmitted command is answered from the response cache without executing it again")
+    void responseCacheTest() throws Exception {
+        PhyConfiguration toServer = new PhyConfiguration(InetAddress.getLoopbackAddress(), port(commandPhy),
+                Protocol.proto_id.CP);
+        CPCommandMsg cmd = new CPCommandMsg();
+        cmd.prepare(7, "print once");
+        String[] responses = new String[2];
+        for (int i = 0; i < 2; i++) {
+            clientPhy.send(cmd, toServer);
+            responses[i] = clientPhy.receive(5000).getData();
+        }
+        assertEquals(responses[0], responses[1]);
+        assertEquals(1, server.getExecuted());
+        assertEquals(1, server.getResponseCache().getHits());
+
+        // same id with another command -> executed
+        CPCommandMsg reused = new CPCommandMsg();
+        reused.prepare(7, "status");
+        clientPhy.send(reused, toServer);
+        assertTrue(clientPhy.receive(5000).getData().contains("running"));
+        assertEquals(2, server.getExecuted());
+    }
+
+    @Test
+    @DisplayName("A command of a batch frame retransmitted on its own is answered from the response cache")
+    void batchResponseCacheTest() throws Exception {
+        PhyConfiguration toServer = new PhyConfiguration(InetAddress.getLoopbackAddress(), port(commandPhy),
+                Protocol.proto_id.CP);
+        CPCommandMsg first = new CPCommandMsg();
+        first.prepare(1, "print first");
+        CPCommandMsg second = new CPCommandMsg();
+        second.prepare(2, "print second");
+        CPCommandBatchMsg batch = new CPCommandBatchMsg();
+        batch.add(first);
+        batch.add(second);
+        clientPhy.send(batch, toServer);
+        assertTrue(clientPhy.receive(5000).getData().startsWith("cp command_response_batch"));
+
+        clientPhy.send(second, toServer);
+        assertTrue(clientPhy.receive(5000).getData().startsWith("cp command_response 2 ok"));
+        assertEquals(2, server.getExecuted());
+        assertEquals(1, server.getResponseCache().getHits());
+    }
+
+    @Test
+    @DisplayName("A pooled response keeps its datagram until it is released, later datagrams do not overwrite it")
+    void pooledResponseTest() throws Exception {
+        client.setPooling(true);
+        client.requestCookie();
+        CPCommandResponseMsg first = client.sendCommandAsync("status").get(5, TimeUnit.SECONDS);
+        for (int i = 0; i < 3; i++)
+            client.sendCommandAsync("status").get(5, TimeUnit.SECONDS).release();
+        // decoded only now from the phy buffer it was received in
+        assertEquals("running 0", first.getResponse());
+        assertEquals(1, clientPhy.getMsgPool().getOutstanding());
+        first.release();
+        assertEquals(0, clientPhy.getMsgPool().getOutstanding());
+        assertEquals(0, client.getMsgPools().getOutstanding());
+    }
+}
@@ -0,0 +1,49 @@
+package cp;
+
+import core.Protocol;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import phy.PhyConfiguration;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CPCookieMacTest {
+    private static PhyConfiguration peer(String address, int port) throws UnknownHostException {
+        return new PhyConfiguration(InetAddress.getByName(address), port, Protocol.proto_id.CP);
+    }
+
+    @Test
+    @DisplayName("A cookie is valid for its client in the epoch of issue and the next one")
+    void validityTest() throws Exception {
+        CPCookieMac mac = new CPCookieMac("secret", 1000);
+        PhyConfiguration client = peer("127.0.0.1", 5000);
+        int cookie = mac.issue(client, 10_500);
+        assertTrue(cookie >= 0);
+        assertTrue(mac.isValid(client, cookie, 10_500));
+        assertTrue(mac.isValid(client, cookie, 11_999));
+        assertFalse(mac.isValid(client, cookie, 12_000));
+        assertFalse(mac.isValid(client, cookie, 9_999));
+
+        assertFalse(mac.isValid(peer("127.0.0.1", 5001), cookie, 10_500));
+        assertFalse(mac.isValid(peer("127.0.0.2", 5000), cookie, 10_500));
+        assertFalse(mac.isValid(client, cookie ^ 1, 10_500));
+        assertFalse(mac.isValid(client, -1, 10_500));
+        // announced lifetime: until the end of the next epoch
+        assertEquals(1_500, mac.validFor(10_500));
+        assertTrue(mac.isValid(client, cookie, 10_500 + mac.validFor(10_500) - 1));
+    }
+
+    @Test
+    @DisplayName("Servers sharing the secret accept each other's cookies, others do not")
+    void sharedSecretTest() throws Exception {
+        PhyConfiguration client = peer("::1", 6000);
+        int cookie = new CPCookieMac("secret", 1000).issue(client, 5_000);
+        assertTrue(new CPCookieMac("secret", 1000).isValid(client, cookie, 5_100));
+        assertFalse(new CPCookieMac("other", 1000).isValid(client, cookie, 5_100));
+        // keys rotate with the epoch
+        assertNotEquals(cookie & 0x0FFFFFFF, new CPCookieMac("secret", 1000).issue(client, 6_000) & 0x0FFFFFFF);
+    }
+}
@@ -4,7 +4,10 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import java.util.Random;
 
+import exceptions.IllegalMsgException;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class CPCookieResponseTest {
     @Test
@@ -24,4 +27,19 @@ public class CPCookieResponseTest {
         resp.create("No cookie available");
         assertEquals("cp cookie_response NAK No cookie available", new String(resp.getDataBytes()));
     }
+
+    @Test
+    @DisplayName("Cookie ACK response with and without lifetime")
+    void parseLifetimeTest() throws Exception {
+        CPCookieResponseMsg resp = (CPCookieResponseMsg) new CPCookieResponseMsg().parse("cookie_response ACK 42 60000");
+        assertEquals(42, resp.getCookie());
+        assertEquals(60000, resp.getLifetime());
+
+        resp = (CPCookieResponseMsg) new CPCookieResponseMsg().parse("cookie_response ACK 42");
+        assertEquals(42, resp.getCookie());
+        assertEquals(0, resp.getLifetime());
+
+        assertThrows(IllegalMsgException.class, () -> new CPCookieResponseMsg().parse("cookie_response ACK 42 -1"));
+        assertThrows(IllegalMsgException.class, () -> new CPCookieResponseMsg().parse("cookie_response ACK 42 1 2"));
+    }
 }
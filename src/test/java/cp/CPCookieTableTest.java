@@ -0,0 +1,64 @@
+package cp;
+
+import core.Protocol;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import phy.PhyConfiguration;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CPCookieTableTest {
+    private static PhyConfiguration peer(int port) throws UnknownHostException {
+        return new PhyConfiguration(InetAddress.getLoopbackAddress(), port, Protocol.proto_id.CP);
+    }
+
+    @Test
+    @DisplayName("Cookies expire after their lifetime and free their slot")
+    void expireTest() throws Exception {
+        CPCookieTable table = new CPCookieTable(2, 1000, false);
+        assertNotNull(table.put(peer(1), 11, 0));
+        assertNotNull(table.put(peer(2), 22, 500));
+        assertNull(table.put(peer(3), 33, 600));
+        assertEquals(1, table.getRejected());
+        assertEquals(11, table.get(peer(1), 999).getCookieValue());
+        assertNull(table.get(peer(1), 1000));
+
+        // the sweep on put() removes the first cookie -> room for the new client
+        assertNotNull(table.put(peer(3), 33, 1100));
+        assertEquals(1, table.getExpired());
+        assertEquals(2, table.size());
+        table.expire(5000);
+        assertEquals(0, table.size());
+        assertEquals(3, table.getExpired());
+    }
+
+    @Test
+    @DisplayName("A renewed cookie is not removed by the expiry of the one it replaced")
+    void renewTest() throws Exception {
+        CPCookieTable table = new CPCookieTable(2, 1000, false);
+        table.put(peer(1), 11, 0);
+        table.put(peer(1), 12, 800);
+        table.expire(1500);
+        assertEquals(12, table.get(peer(1), 1500).getCookieValue());
+        assertEquals(1, table.size());
+        assertEquals(0, table.getExpired());
+    }
+
+    @Test
+    @DisplayName("When full, the cookie closest to expiry is evicted for a new client")
+    void evictTest() throws Exception {
+        CPCookieTable table = new CPCookieTable(2, 1000, true);
+        table.put(peer(1), 11, 0);
+        table.put(peer(2), 22, 100);
+        table.put(peer(1), 13, 200);
+        assertNotNull(table.put(peer(3), 33, 300));
+        assertEquals(1, table.getEvicted());
+        assertNull(table.get(peer(2), 300));
+        assertEquals(13, table.get(peer(1), 300).getCookieValue());
+        assertEquals(33, table.get(peer(3), 300).getCookieValue());
+        assertEquals(2, table.size());
+    }
+}
@@ -0,0 +1,62 @@
+package cp;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CPRttEstimatorTest {
+    private static final long MS = 1_000_000L;
+
+    @Test
+    @DisplayName("First sample sets SRTT and RTTVAR, RTO follows SRTT + 4 RTTVAR within bounds")
+    void sampleTest() {
+        CPRttEstimator est = new CPRttEstimator(2000, 20, 8000);
+        assertEquals(2000, est.getRto());
+
+        est.sample(100 * MS);
+        assertEquals(100 * MS, est.getSrtt());
+        assertEquals(50 * MS, est.getRttVar());
+        assertEquals(300, est.getRto());
+
+        // RTTVAR = 3/4 * 50 + 1/4 * |100 - 20| = 57.5, SRTT = 7/8 * 100 + 1/8 * 20 = 90
+        est.sample(20 * MS);
+        assertEquals(90 * MS, est.getSrtt());
+        assertEquals(57_500_000L, est.getRttVar());
+        assertEquals(320, est.getRto());
+
+        // loopback round trips end at the lower bound
+        CPRttEstimator fast = new CPRttEstimator(2000, 20, 8000);
+        fast.sample(50_000L);
+        assertEquals(20, fast.getRto());
+    }
+
+    @Test
+    @DisplayName("Backoff doubles the RTO up to the upper bound, the next sample resets it")
+    void backoffTest() {
+        CPRttEstimator est = new CPRttEstimator(2000, 20, 8000);
+        est.backoff();
+        assertEquals(4000, est.getRto());
+        est.backoff();
+        est.backoff();
+        assertEquals(8000, est.getRto());
+
+        est.sample(100 * MS);
+        assertEquals(300, est.getRto());
+        assertEquals(1, est.getSamples());
+    }
+
+    @Test
+    @DisplayName("Requests that were in flight together back off the RTO once, not once each")
+    void backoffEpisodeTest() throws InterruptedException {
+        CPRttEstimator est = new CPRttEstimator(100, 20, 8000);
+        long sentAt = System.nanoTime();
+        for (int i = 0; i < 8; i++)
+            est.backoff(sentAt);
+        assertEquals(200, est.getRto());
+        // the retransmission is sent after the backoff and times out as well -> next episode
+        Thread.sleep(1);
+        est.backoff(System.nanoTime());
+        assertEquals(400, est.getRto());
+    }
+}
@@ -0,0 +1,67 @@
+package cp;
+
+import core.Protocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import phy.PhyChannelProtocol;
+import phy.PhyConfiguration;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CPShardedCookieServerTest {
+    PhyChannelProtocol serverPhy;
+    CPShardedCookieServer server;
+    int port;
+
+    @BeforeEach
+    void setup() throws Exception {
+        serverPhy = new PhyChannelProtocol(0);
+        port = ((InetSocketAddress) serverPhy.getChannel().getLocalAddress()).getPort();
+        server = new CPShardedCookieServer(serverPhy, 4, 64, 60_000);
+        server.start();
+    }
+
+    @AfterEach
+    void teardown() throws Exception {
+        server.close();
+        serverPhy.close();
+    }
+
+    @Test
+    @DisplayName("Every client gets a cookie from the shard its address maps to")
+    void shardTest() throws Exception {
+        List<PhyChannelProtocol> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                PhyChannelProtocol phy = new PhyChannelProtocol(0);
+                clients.add(phy);
+                CPProtocol client = new CPProtocol(InetAddress.getLoopbackAddress(), port, phy);
+                client.setCookieServer(InetAddress.getLoopbackAddress(), port);
+                client.requestCookie();
+            }
+            long issued = 0;
+            for (int s = 0; s < server.getShards(); s++)
+                issued += server.getCookieTable(s).getIssued();
+            assertEquals(8, issued);
+            for (PhyChannelProtocol phy : clients) {
+                int clientPort = ((InetSocketAddress) phy.getChannel().getLocalAddress()).getPort();
+                PhyConfiguration peer = new PhyConfiguration(InetAddress.getLoopbackAddress(), clientPort,
+                        Protocol.proto_id.CP);
+                assertNotNull(server.getCookieTable(server.shardOf(peer)).get(peer));
+            }
+            assertEquals(8, server.getReceived());
+            assertEquals(0, server.getDropped());
+        } finally {
+            for (PhyChannelProtocol phy : clients)
+                phy.close();
+        }
+    }
+}
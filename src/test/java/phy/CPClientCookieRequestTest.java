@@ -17,7 +17,6 @@ import java.net.UnknownHostException;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -32,6 +31,14 @@ public class CPClientCookieRequestTest {
     PhyMsg testMsg;
     PhyMsg corruptedMsg;
     CPProtocol cProtocol;
+    // System.nanoTime() before the object-under-test is used
+    long start;
+
+    // deadline of one receive attempt: the 2000 ms timeout counted from a point in time during the test
+    private long deadline() {
+        long timeout = 2000 * 1_000_000L;
+        return longThat(d -> d - start >= timeout && d - System.nanoTime() <= timeout);
+    }
 
     @BeforeEach
     void setup() throws UnknownHostException {
@@ -45,6 +52,7 @@ public class CPClientCookieRequestTest {
             fail();
         }
         // Set up the object-under-test
+        start = System.nanoTime();
         cProtocol = new CPProtocol(InetAddress.getByName(serverName), commandServerPort, phyProtocolMock);
         cProtocol.setCookieServer(InetAddress.getByName(serverName), cookieServerPort);
     }
@@ -56,13 +64,13 @@ public class CPClientCookieRequestTest {
         testMsg = (PhyMsg)testMsg.parse("phy 7 cp cookie_response ACK 12345");
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenReturn(testMsg);
+        when(phyProtocolMock.receiveUntil(deadline())).thenReturn(testMsg);
 
         // Run the test
         assertDoesNotThrow(()->cProtocol.requestCookie());
 
         // verify a specified behavior
-        verify(phyProtocolMock, times(1)).receive(2000);
+        verify(phyProtocolMock, times(1)).receiveUntil(deadline());
         verify(phyProtocolMock).send(eq("cp cookie_request"), any(PhyConfiguration.class));
         verify(phyProtocolMock, times(1)).send(anyString(), any(PhyConfiguration.class));
     }
@@ -74,13 +82,13 @@ public class CPClientCookieRequestTest {
         testMsg = (PhyMsg) testMsg.parse("phy 7 cp cookie_response NAK no resources");
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenReturn(testMsg);
+        when(phyProtocolMock.receiveUntil(deadline())).thenReturn(testMsg);
 
         // Run the test
         assertThrows(CookieRequestException.class,
                 ()->cProtocol.requestCookie());
 
-        verify(phyProtocolMock, times(1)).receive(2000);
+        verify(phyProtocolMock, times(1)).receiveUntil(deadline());
         verify(phyProtocolMock, times(1)).send(eq("cp cookie_request"), any(PhyConfiguration.class));
     }
 
@@ -95,12 +103,12 @@ public class CPClientCookieRequestTest {
         testMsg = (PhyMsg) testMsg.parse("phy 7 cp cookie_response ACK 12345");
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenReturn(corruptedPhyMsg).thenReturn(testMsg);
+        when(phyProtocolMock.receiveUntil(deadline())).thenReturn(corruptedPhyMsg).thenReturn(testMsg);
 
         // Run the test
         assertDoesNotThrow(()->cProtocol.requestCookie());
 
-        verify(phyProtocolMock, times(2)).receive(2000);
+        verify(phyProtocolMock, times(2)).receiveUntil(deadline());
         verify(phyProtocolMock, times(2)).send(eq("cp cookie_request"), any(PhyConfiguration.class));
     }
 
@@ -113,12 +121,12 @@ public class CPClientCookieRequestTest {
         testMsg = (PhyMsg) testMsg.parse("phy 7 cp cookie_response ACK 12345");
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenReturn(corruptedMsg).thenReturn(testMsg);
+        when(phyProtocolMock.receiveUntil(deadline())).thenReturn(corruptedMsg).thenReturn(testMsg);
 
         // Run the test
         assertDoesNotThrow(()->cProtocol.requestCookie());
 
-        verify(phyProtocolMock, times(2)).receive(2000);
+        verify(phyProtocolMock, times(2)).receiveUntil(deadline());
         verify(phyProtocolMock, times(2)).send(eq("cp cookie_request"), any(PhyConfiguration.class));
     }
 
@@ -131,12 +139,12 @@ public class CPClientCookieRequestTest {
         testMsg = (PhyMsg) testMsg.parse("phy 7 cp cookie_response ACK 12345");
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenReturn(corruptedMsg).thenReturn(testMsg);
+        when(phyProtocolMock.receiveUntil(deadline())).thenReturn(corruptedMsg).thenReturn(testMsg);
 
         // Run the test
         assertDoesNotThrow(()->cProtocol.requestCookie());
 
-        verify(phyProtocolMock, times(2)).receive(anyInt());
+        verify(phyProtocolMock, times(2)).receiveUntil(deadline());
         verify(phyProtocolMock, times(2)).send(eq("cp cookie_request"), any(PhyConfiguration.class));
     }
 
@@ -144,12 +152,12 @@ public class CPClientCookieRequestTest {
     void testMessageLoss() throws IOException, IWProtocolException {
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenThrow(new SocketTimeoutException());
+        when(phyProtocolMock.receiveUntil(deadline())).thenThrow(new SocketTimeoutException());
 
         // Run the test
         assertThrows(CookieRequestException.class,
                 ()->cProtocol.requestCookie());
-        verify(phyProtocolMock, times(3)).receive(2000);
+        verify(phyProtocolMock, times(3)).receiveUntil(deadline());
         verify(phyProtocolMock, times(3)).send(eq("cp cookie_request"), any(PhyConfiguration.class));
     }
 
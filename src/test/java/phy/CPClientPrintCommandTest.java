@@ -15,7 +15,6 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import static org.junit.jupiter.api.Assertions.*;
-import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.*;
 import static org.mockito.Mockito.verify;
 
@@ -30,6 +29,14 @@ public class CPClientPrintCommandTest {
     PhyMsg testMsg;
     PhyMsg corruptMsg;
     CPProtocol cProtocol;
+    // System.nanoTime() before the object-under-test is used
+    long start;
+
+    // deadline of one receive attempt: the 2000 ms timeout counted from a point in time during the test
+    private long deadline() {
+        long timeout = 2000 * 1_000_000L;
+        return longThat(d -> d - start >= timeout && d - System.nanoTime() <= timeout);
+    }
 
     @BeforeEach
     void setup() throws UnknownHostException {
@@ -41,6 +48,7 @@ public class CPClientPrintCommandTest {
             fail();
         }
         // Set up the object-under-test
+        start = System.nanoTime();
         cProtocol = new CPProtocol(InetAddress.getByName(serverName), serverPort, phyProtocolMock);
     }
 
@@ -51,13 +59,13 @@ public class CPClientPrintCommandTest {
         testMsg = (PhyMsg)testMsg.parse("phy 7 cp command_response 0 ok 0 2368828647");
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenReturn(testMsg);
+        when(phyProtocolMock.receiveUntil(deadline())).thenReturn(testMsg);
 
         // Run the test
         assertDoesNotThrow(()->cProtocol.receive());
 
         // verify a specified behavior
-        verify(phyProtocolMock, times(1)).receive(2000);
+        verify(phyProtocolMock, times(1)).receiveUntil(deadline());
     }
 
     @Test
@@ -67,14 +75,14 @@ public class CPClientPrintCommandTest {
         testMsg = (PhyMsg)testMsg.parse("phy 7 cp command_response 0 error 0 4233987072");
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenReturn(testMsg);
+        when(phyProtocolMock.receiveUntil(deadline())).thenReturn(testMsg);
 
         // Run the test
         assertThrows(CookieTimeoutException.class,
                 ()->cProtocol.receive());
 
         // verify a specified behavior
-        verify(phyProtocolMock, times(1)).receive(2000);
+        verify(phyProtocolMock, times(1)).receiveUntil(deadline());
     }
 
     @Test
@@ -84,14 +92,14 @@ public class CPClientPrintCommandTest {
         testMsg = (PhyMsg)testMsg.parse("phy 7 cp command_response 0 error 16 Out of Resources 367825814");
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenReturn(testMsg);
+        when(phyProtocolMock.receiveUntil(deadline())).thenReturn(testMsg);
 
         // Run the test
         assertThrows(CookieTimeoutException.class,
                 ()->cProtocol.receive());
 
         // verify a specified behavior
-        verify(phyProtocolMock, times(1)).receive(2000);
+        verify(phyProtocolMock, times(1)).receiveUntil(deadline());
     }
 
     @Test
@@ -102,13 +110,13 @@ public class CPClientPrintCommandTest {
         corruptMsg = (PhyMsg)corruptMsg.parse("phy 7 cp command_response 0 4003252835");
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenReturn(corruptMsg).thenReturn(testMsg);
+        when(phyProtocolMock.receiveUntil(deadline())).thenReturn(corruptMsg).thenReturn(testMsg);
 
         // Run the test
         assertDoesNotThrow(()->cProtocol.receive());
 
         // verify a specified behavior
-        verify(phyProtocolMock, times(2)).receive(2000);
+        verify(phyProtocolMock, times(2)).receiveUntil(deadline());
     }
 
     @Test
@@ -119,13 +127,13 @@ public class CPClientPrintCommandTest {
         corruptMsg = (PhyMsg)corruptMsg.parse("phy 7 cp command_response 1 ok Null 4003252835");
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenReturn(corruptMsg).thenReturn(testMsg);
+        when(phyProtocolMock.receiveUntil(deadline())).thenReturn(corruptMsg).thenReturn(testMsg);
 
         // Run the test
         assertDoesNotThrow(()->cProtocol.receive());
 
         // verify a specified behavior
-        verify(phyProtocolMock, times(2)).receive(2000);
+        verify(phyProtocolMock, times(2)).receiveUntil(deadline());
     }
 
     @Test
@@ -136,13 +144,13 @@ public class CPClientPrintCommandTest {
         corruptMsg = (PhyMsg)corruptMsg.parse("phy 7 cp command_response 1 ok 0 400325283");
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenReturn(corruptMsg).thenReturn(testMsg);
+        when(phyProtocolMock.receiveUntil(deadline())).thenReturn(corruptMsg).thenReturn(testMsg);
 
         // Run the test
         assertDoesNotThrow(()->cProtocol.receive());
 
         // verify a specified behavior
-        verify(phyProtocolMock, times(2)).receive(2000);
+        verify(phyProtocolMock, times(2)).receiveUntil(deadline());
     }
 
     @Test
@@ -153,13 +161,13 @@ public class CPClientPrintCommandTest {
         corruptMsg = (PhyMsg)corruptMsg.parse("phy 7 cp command_response 1 ok 0 Hello 4003252835");
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenReturn(corruptMsg).thenReturn(testMsg);
+        when(phyProtocolMock.receiveUntil(deadline())).thenReturn(corruptMsg).thenReturn(testMsg);
 
         // Run the test
         assertDoesNotThrow(()->cProtocol.receive());
 
         // verify a specified behavior
-        verify(phyProtocolMock, times(2)).receive(2000);
+        verify(phyProtocolMock, times(2)).receiveUntil(deadline());
     }
 
     @Test
@@ -170,12 +178,12 @@ public class CPClientPrintCommandTest {
         corruptMsg = (PhyMsg)corruptMsg.parse("phy 7 cp command_response 1 ok 10 Hello 4003252835");
 
         // Implement behavior of the mocked object
-        when(phyProtocolMock.receive(anyInt())).thenReturn(corruptMsg).thenReturn(testMsg);
+        when(phyProtocolMock.receiveUntil(deadline())).thenReturn(corruptMsg).thenReturn(testMsg);
 
         // Run the test
         assertDoesNotThrow(()->cProtocol.receive());
 
         // verify a specified behavior
-        verify(phyProtocolMock, times(2)).receive(2000);
+        verify(phyProtocolMock, times(2)).receiveUntil(deadline());
     }
 }
@@ -0,0 +1,345 @@
+package phy;
+
+import core.Msg;
+import core.Protocol;
+import cp.CPCommandMsg;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PhyChannelProtocolTest {
+    PhyChannelProtocol sender;
+    PhyChannelProtocol receiver;
+    PhyConfiguration toReceiver;
+
+    @BeforeEach
+    void setup() throws IOException {
+        // Port 0 -> let the OS pick free ports
+        sender = new PhyChannelProtocol(0);
+        receiver = new PhyChannelProtocol(0);
+        int port = ((InetSocketAddress) receiver.getChannel().getLocalAddress()).getPort();
+        toReceiver = new PhyConfiguration(InetAddress.getLoopbackAddress(), port, Protocol.proto_id.APP);
+    }
+
+    @AfterEach
+    void teardown() throws IOException {
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    @DisplayName("Messages sent over the channel are received and parsed")
+    void sendReceiveTest() throws Exception {
+        sender.send("Hello World", toReceiver);
+        sender.send("second", toReceiver);
+
+        Msg first = receiver.receive(2000);
+        Msg second = receiver.receive(2000);
+        assertEquals("Hello World", first.getData());
+        assertEquals("second", second.getData());
+        assertEquals(Protocol.proto_id.APP, ((PhyConfiguration) first.getConfiguration()).getPid());
+    }
+
+    @Test
+    @DisplayName("Datagrams larger than PHY_BUFFER_SIZE arrive complete")
+    void largeDatagramTest() throws Exception {
+        String large = "x".repeat(8000);
+        sender.send(large, toReceiver);
+        assertEquals(large, receiver.receive(2000).getData());
+    }
+
+    @Test
+    @DisplayName("Receive with timeout raises SocketTimeoutException")
+    void timeoutTest() {
+        assertThrows(SocketTimeoutException.class, () -> receiver.receive(50));
+    }
+
+    @Test
+    @DisplayName("Batch receive drains queued datagrams up to max and skips illegal ones")
+    void receiveBatchTest() throws Exception {
+        for (int i = 0; i < 5; i++)
+            sender.send("msg " + i, toReceiver);
+        // a datagram without phy header is dropped by the parser
+        sender.getChannel().send(ByteBuffer.wrap("garbage".getBytes()), toReceiver.getRemoteSocketAddress());
+        sender.send("last", toReceiver);
+        Thread.sleep(100);
+
+        PhyMsgBatch batch = receiver.receiveBatch(3, 2000);
+        assertEquals(3, batch.size());
+        assertEquals("msg 0", batch.get(0).getData());
+        assertEquals("msg 2", batch.get(2).getData());
+
+        batch = receiver.receiveBatch(10, 2000);
+        assertEquals(3, batch.size());
+        assertEquals("last", batch.get(2).getData());
+
+        assertTrue(receiver.receiveBatch(10, 50).isEmpty());
+    }
+
+    @Test
+    @DisplayName("Event loop dispatches messages of several endpoints on one thread")
+    void eventLoopTest() throws Exception {
+        PhyChannelProtocol second = new PhyChannelProtocol(0);
+        int port = ((InetSocketAddress) second.getChannel().getLocalAddress()).getPort();
+        PhyConfiguration toSecond = new PhyConfiguration(InetAddress.getLoopbackAddress(), port, Protocol.proto_id.APP);
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+        PhyEventLoop loop = new PhyEventLoop();
+        loop.start("test-loop");
+        PhyHandler handler = (endpoint, msg) -> {
+            threads.add(Thread.currentThread());
+            received.add(msg.getData());
+        };
+        loop.register(receiver, handler);
+        loop.register(second, handler);
+        try {
+            sender.send("to first", toReceiver);
+            sender.send("to second", toSecond);
+
+            Set<String> got = new HashSet<>();
+            got.add(received.poll(2, TimeUnit.SECONDS));
+            got.add(received.poll(2, TimeUnit.SECONDS));
+            assertEquals(Set.of("to first", "to second"), got);
+            assertEquals(1, threads.size());
+        } finally {
+            loop.close();
+            second.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Pooled receive reuses released message objects and tracks outstanding ones")
+    void pooledReceiveTest() throws Exception {
+        receiver.setPooling(true);
+        for (int i = 0; i < 3; i++) {
+            sender.send("msg " + i, toReceiver);
+            Msg in = receiver.receive(2000);
+            assertEquals("msg " + i, in.getData());
+            assertEquals(1, receiver.getMsgPool().getOutstanding());
+            in.release();
+        }
+        assertEquals(1, receiver.getMsgPool().getCreated());
+        assertEquals(0, receiver.getMsgPool().getOutstanding());
+
+        // forgotten release shows up as outstanding message
+        sender.send("leak", toReceiver);
+        Msg leaked = receiver.receive(2000);
+        assertEquals(1, receiver.getMsgPool().getOutstanding());
+        leaked.release();
+        assertThrows(IllegalStateException.class, leaked::release);
+    }
+
+    @Test
+    @DisplayName("The bytes of a pooled message stay valid after it was released and reused")
+    void pooledDataBytesTest() throws Exception {
+        receiver.setPooling(true);
+        // "phy 3 " + payload fills the pooled buffer exactly
+        sender.send("a".repeat(1018), toReceiver);
+        Msg first = receiver.receive(2000);
+        byte[] bytes = first.getDataBytes();
+        assertEquals(1024, bytes.length);
+        first.release();
+        sender.send("b".repeat(1018), toReceiver);
+        Msg second = receiver.receive(2000);
+        assertEquals(1, receiver.getMsgPool().getCreated());
+        assertEquals("phy 3 " + "a".repeat(1018), new String(bytes));
+        second.release();
+    }
+
+    @Test
+    @DisplayName("A command held as bytes is encoded into the send buffer and reaches every peer")
+    void byteBufferSendTest() throws Exception {
+        ByteBuffer command = ByteBuffer.wrap("print direct".getBytes());
+        CPCommandMsg cmd = new CPCommandMsg();
+        cmd.prepare(3, command);
+        PhyChannelProtocol other = new PhyChannelProtocol(0);
+        try {
+            int port = ((InetSocketAddress) other.getChannel().getLocalAddress()).getPort();
+            PhyConfiguration toOther = new PhyConfiguration(InetAddress.getLoopbackAddress(), port, Protocol.proto_id.CP);
+            PhyConfiguration cp = new PhyConfiguration(InetAddress.getLoopbackAddress(),
+                    toReceiver.getRemoteSocketAddress().getPort(), Protocol.proto_id.CP);
+
+            sender.send(cmd, cp);
+            sender.send(cmd, toOther);
+            assertEquals("cp command 3 12 print direct " + cmd.getCrc32(), receiver.receive(2000).getData());
+            assertEquals("cp command 3 12 print direct " + cmd.getCrc32(), other.receive(2000).getData());
+            // replies from both peers reach the sender
+            receiver.send("from receiver", new PhyConfiguration(InetAddress.getLoopbackAddress(),
+                    ((InetSocketAddress) sender.getChannel().getLocalAddress()).getPort(), Protocol.proto_id.APP));
+            other.send("from other", new PhyConfiguration(InetAddress.getLoopbackAddress(),
+                    ((InetSocketAddress) sender.getChannel().getLocalAddress()).getPort(), Protocol.proto_id.APP));
+            Set<String> replies = new HashSet<>();
+            replies.add(sender.receive(2000).getData());
+            replies.add(sender.receive(2000).getData());
+            assertEquals(Set.of("from receiver", "from other"), replies);
+        } finally {
+            other.close();
+        }
+        // the application's buffer is left untouched
+        assertEquals(0, command.position());
+        assertEquals("print direct", cmd.getCommand());
+    }
+
+    @Test
+    @DisplayName("Async send hands messages to the writer thread in order and counts drops after close")
+    void asyncSendTest() throws Exception {
+        sender.setAsyncSend(16);
+        PhySendQueue queue = sender.getSendQueue();
+        for (int i = 0; i < 5; i++)
+            sender.send("async " + i, toReceiver);
+        queue.flush();
+        assertEquals(5, queue.getSent());
+        assertEquals(0, queue.getDepth());
+        for (int i = 0; i < 5; i++)
+            assertEquals("async " + i, receiver.receive(2000).getData());
+
+        queue.close();
+        sender.send("late", toReceiver);
+        assertEquals(1, queue.getDropped());
+        assertEquals(0, queue.getErrors());
+    }
+
+    @Test
+    @DisplayName("Async send from many threads never leaves the writer parked with messages queued")
+    void asyncSendWakeupTest() throws Exception {
+        sender.setAsyncSend(100_000);
+        PhySendQueue queue = sender.getSendQueue();
+        int producers = 4;
+        int perProducer = 2000;
+        Thread[] threads = new Thread[producers];
+        for (int t = 0; t < producers; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perProducer; i++) {
+                        sender.send("wakeup " + i, toReceiver);
+                        // let the writer run dry and park now and then
+                        if (i % 16 == 0)
+                            Thread.yield();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertTimeoutPreemptively(Duration.ofSeconds(10), queue::flush);
+        assertEquals(producers * perProducer, queue.getSent());
+        assertEquals(0, queue.getDepth());
+        queue.close();
+    }
+
+    @Test
+    @DisplayName("flush() returns once its messages are sent while other threads keep the queue busy")
+    void flushUnderLoadTest() throws Exception {
+        // a slow transport -> the producer below keeps the queue from ever running empty
+        PhyChannelProtocol slow = new PhyChannelProtocol(0) {
+            @Override
+            protected void transmit(Msg upper, PhyConfiguration config) throws IOException {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        PhySendQueue queue = new PhySendQueue(slow, 200);
+        CPCommandMsg cmd = new CPCommandMsg();
+        cmd.prepare(1, "status");
+        AtomicBoolean producing = new AtomicBoolean(true);
+        Thread producer = new Thread(() -> {
+            while (producing.get()) {
+                queue.offer(cmd, toReceiver);
+                queue.offer(cmd, toReceiver);
+                Thread.yield();
+            }
+        });
+        try {
+            for (int i = 0; i < 20; i++)
+                queue.offer(cmd, toReceiver);
+            producer.start();
+            assertTimeoutPreemptively(Duration.ofSeconds(5), queue::flush);
+            assertTrue(queue.getSent() >= 20);
+            assertTrue(queue.getDepth() > 0);
+        } finally {
+            producing.set(false);
+            producer.join();
+            queue.close();
+            slow.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Messages for other protocol ids are queued for them instead of being dropped")
+    void demuxTest() throws Exception {
+        receiver.register(Protocol.proto_id.CP, 4);
+        receiver.register(Protocol.proto_id.APP, 4);
+        int port = toReceiver.getRemoteSocketAddress().getPort();
+        PhyConfiguration toCP = new PhyConfiguration(InetAddress.getLoopbackAddress(), port, Protocol.proto_id.CP);
+        PhyConfiguration toSLP = new PhyConfiguration(InetAddress.getLoopbackAddress(), port, Protocol.proto_id.SLP);
+
+        sender.send("for app", toReceiver);
+        sender.send("for slp", toSLP);
+        sender.send("for cp", toCP);
+
+        assertEquals("for cp", receiver.receive(Protocol.proto_id.CP, 2000).getData());
+        assertEquals(1, receiver.getDemux().getDepth(Protocol.proto_id.APP));
+        assertEquals(1, receiver.getDemux().getDropped(Protocol.proto_id.SLP));
+        assertEquals("for app", receiver.receive(Protocol.proto_id.APP, 2000).getData());
+        assertThrows(SocketTimeoutException.class, () -> receiver.receive(Protocol.proto_id.APP, 50));
+    }
+
+    @Test
+    @DisplayName("Deadline receive skips illegal datagrams and ends at the deadline")
+    void receiveUntilTest() throws Exception {
+        sender.getChannel().send(ByteBuffer.wrap("garbage".getBytes()), toReceiver.getRemoteSocketAddress());
+        sender.send("valid", toReceiver);
+        assertEquals("valid", receiver.receiveUntil(System.nanoTime() + TimeUnit.SECONDS.toNanos(2)).getData());
+
+        long start = System.nanoTime();
+        assertThrows(SocketTimeoutException.class,
+                () -> receiver.receiveUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50)));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed >= 50 && elapsed < 1000, "waited " + elapsed + " ms");
+    }
+
+    @Test
+    @DisplayName("Async receive futures are completed in call order, early messages are kept")
+    void receiveAsyncTest() throws Exception {
+        CompletableFuture<Msg> first = receiver.receiveAsync();
+        CompletableFuture<Msg> second = receiver.receiveAsync();
+        sender.send("one", toReceiver);
+        sender.send("two", toReceiver);
+        sender.send("three", toReceiver);
+
+        assertEquals("one", first.get(2, TimeUnit.SECONDS).getData());
+        assertEquals("two", second.get(2, TimeUnit.SECONDS).getData());
+        assertEquals("three", receiver.receiveAsync().get(2, TimeUnit.SECONDS).getData());
+
+        CompletableFuture<Msg> pending = receiver.receiveAsync();
+        receiver.close();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> pending.get(2, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, e.getCause());
+    }
+}
@@ -1,13 +1,15 @@
 package phy;
 
+import core.Msg;
 import core.Protocol;
+import exceptions.IllegalMsgException;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class PhyMsgTest {
     @Test
@@ -26,4 +28,39 @@ public class PhyMsgTest {
 
         assertEquals("phy 3 Hello World", new String(msg.getDataBytes()));
     }
+
+    @Test
+    @DisplayName("Byte parser accepts the same messages as the String based parser")
+    void parseAcceptTest() throws Exception {
+        PhyMsg msg = (PhyMsg) new PhyMsg().parse("phy 7 cp cookie_request");
+        assertEquals(Protocol.proto_id.CP, msg.getPid());
+        assertEquals("cp cookie_request", msg.getData());
+
+        byte[] raw = "  phy\t3   Hello  World \n".getBytes();
+        msg = (PhyMsg) new PhyMsg().parse(raw, 0, raw.length);
+        assertEquals(Protocol.proto_id.APP, msg.getPid());
+        assertEquals("Hello  World", msg.getData());
+        assertEquals("Hello  World", new String(msg.getDataBytes(), msg.getPayloadOffset(), msg.getPayloadLength()));
+
+        // first token only has to start with the header, id is parsed like Integer.parseInt
+        assertEquals(Protocol.proto_id.SLP, ((PhyMsg) new PhyMsg().parse("phyX +05 data")).getPid());
+    }
+
+    @Test
+    @DisplayName("Byte parser rejects illegal messages")
+    void parseRejectTest() {
+        for (String s : new String[]{"ph 3 a", "xphy 3 a", "phy 2 a", "phy -7 a", "phy 3x a", "phy 3", "phy", "phy 99999999999 a"}) {
+            assertThrows(IllegalMsgException.class, () -> new PhyMsg().parse(s), s);
+        }
+    }
+
+    @Test
+    @DisplayName("Ping messages are parsed in place")
+    void parsePingTest() throws Exception {
+        Msg msg = new PhyMsg().parse("phy 1 ping 42");
+        assertTrue(msg instanceof PhyPingMsg);
+        assertEquals(42, ((PhyPingMsg) msg).getCount());
+        assertEquals("42", msg.getData());
+        assertThrows(IllegalMsgException.class, () -> new PhyMsg().parse("phy 1 ping x"));
+    }
 }
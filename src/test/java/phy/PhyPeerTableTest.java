@@ -0,0 +1,53 @@
+package phy;
+
+import core.Protocol;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PhyPeerTableTest {
+    @Test
+    @DisplayName("Known peers map to the same configuration object")
+    void internTest() throws Exception {
+        PhyPeerTable table = new PhyPeerTable();
+        InetAddress a = InetAddress.getByName("10.0.0.1");
+        PhyConfiguration first = table.lookup(a, 5000, Protocol.proto_id.CP);
+
+        assertSame(first, table.lookup(InetAddress.getByName("10.0.0.1"), 5000, Protocol.proto_id.CP));
+        assertNotSame(first, table.lookup(a, 5001, Protocol.proto_id.CP));
+        assertNotSame(first, table.lookup(InetAddress.getByName("10.0.0.2"), 5000, Protocol.proto_id.CP));
+        // the pid is part of the configuration -> own object, but still equal for the cookie map
+        PhyConfiguration app = table.lookup(a, 5000, Protocol.proto_id.APP);
+        assertNotSame(first, app);
+        assertEquals(first, app);
+        assertEquals(Protocol.proto_id.APP, app.getPid());
+        assertEquals(4, table.size());
+    }
+
+    @Test
+    @DisplayName("IPv6 peers and table growth")
+    void ipv6AndGrowTest() throws Exception {
+        PhyPeerTable table = new PhyPeerTable();
+        InetAddress v6 = InetAddress.getByName("::1");
+        PhyConfiguration p = table.lookup(v6, 4000, Protocol.proto_id.CP);
+        assertSame(p, table.lookup(InetAddress.getByName("::1"), 4000, Protocol.proto_id.CP));
+
+        PhyConfiguration[] v4 = new PhyConfiguration[1000];
+        for (int i = 0; i < v4.length; i++)
+            v4[i] = table.lookup(InetAddress.getByName("192.168.0.1"), 10000 + i, Protocol.proto_id.CP);
+        for (int i = 0; i < v4.length; i++)
+            assertSame(v4[i], table.lookup(InetAddress.getByName("192.168.0.1"), 10000 + i, Protocol.proto_id.CP));
+        assertEquals(1001, table.size());
+    }
+
+    @Test
+    @DisplayName("hashCode is unchanged")
+    void hashCodeTest() throws Exception {
+        PhyConfiguration c = new PhyConfiguration(InetAddress.getByName("10.1.2.3"), 2000, Protocol.proto_id.CP);
+        assertEquals(Objects.hash(c.getRemoteIPAddress(), c.getRemotePort()), c.hashCode());
+    }
+}